@@ -0,0 +1,61 @@
+package me.rkfg.pfe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+
+/**
+ * Settings for the benchmarks that don't depend on the user's pfe_settings.ini.
+ */
+public final class BenchmarkSettings {
+
+    private BenchmarkSettings() {
+    }
+
+    /**
+     * @param settings
+     *            ini key/value pairs
+     * @return storage reading a temporary ini file with the given settings only
+     */
+    public static SettingsStorage create(String... settings) throws IOException {
+        // the progress loop logs every change at INFO which would dominate the measurements
+        LogManager.getRootLogger().setLevel(Level.WARN);
+        Properties properties = new Properties();
+        for (int i = 0; i + 1 < settings.length; i += 2) {
+            properties.setProperty(settings[i], settings[i + 1]);
+        }
+        File ini = File.createTempFile("pfe_bench", ".ini");
+        ini.deleteOnExit();
+        try (OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(ini), StandardCharsets.UTF_8)) {
+            properties.store(writer, "");
+        }
+        String previous = System.getProperty("pfe.settings");
+        System.setProperty("pfe.settings", ini.getAbsolutePath());
+        try {
+            return new SettingsStorage(BenchmarkSettings.class);
+        } finally {
+            if (previous == null) {
+                System.clearProperty("pfe.settings");
+            } else {
+                System.setProperty("pfe.settings", previous);
+            }
+        }
+    }
+
+    /**
+     * @return a random info hash in hex
+     */
+    public static String randomHex(Random random) {
+        byte[] bytes = new byte[20];
+        random.nextBytes(bytes);
+        return Hex.encodeHexString(bytes);
+    }
+}
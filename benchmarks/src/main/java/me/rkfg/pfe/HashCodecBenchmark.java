@@ -0,0 +1,70 @@
+package me.rkfg.pfe;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hash encodings behind {@code PFECore.base32ToSha1} and {@code PFECore.getHash}: the registry lookups taken for the
+ * known torrents and the conversions done for the unknown ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashCodecBenchmark {
+
+    private static final int HASHES = 1024;
+
+    private String[] hex = new String[HASHES];
+    private String[] base32 = new String[HASHES];
+    private TorrentRegistry registry = new TorrentRegistry();
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        for (int i = 0; i < HASHES; i++) {
+            hex[i] = BenchmarkSettings.randomHex(random);
+            base32[i] = HashCodec.hexToBase32(hex[i]);
+            registry.register(i, null, null, hex[i]);
+        }
+    }
+
+    private int next() {
+        next = (next + 1) & (HASHES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public String base32ToHex() {
+        return HashCodec.base32ToHex(base32[next()]);
+    }
+
+    @Benchmark
+    public String hexToBase32() {
+        return HashCodec.hexToBase32(hex[next()]);
+    }
+
+    @Benchmark
+    public TorrentRegistry.Entry lookupByBase32() {
+        return registry.getByBase32(base32[next()]);
+    }
+
+    @Benchmark
+    public String lookupById() {
+        return registry.get(next()).getBase32();
+    }
+}
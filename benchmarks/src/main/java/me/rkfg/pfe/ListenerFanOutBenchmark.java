@@ -0,0 +1,93 @@
+package me.rkfg.pfe;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Progress events delivered through {@link ListenerDispatcher} to several listeners. {@code publish} measures what the
+ * engine thread pays per batch, {@code deliver} waits until every listener got the batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerFanOutBenchmark {
+
+    @Param({ "1", "4", "16" })
+    public int listeners;
+
+    @Param({ "100", "10000" })
+    public int batch;
+
+    private ListenerDispatcher dispatcher;
+    private List<CountingListener> counting = new ArrayList<>();
+    private List<TorrentActivity> activities = new ArrayList<>();
+
+    private static class CountingListener extends PFEListenerAdapter {
+        AtomicLong received = new AtomicLong();
+
+        @Override
+        public void torrentProgress(Collection<TorrentActivity> torrentActivities) {
+            received.addAndGet(torrentActivities.size());
+        }
+    }
+
+    @Setup
+    public void setup() {
+        dispatcher = new ListenerDispatcher(new Metrics());
+        dispatcher.setCapacity(batch);
+        for (int i = 0; i < listeners; i++) {
+            CountingListener listener = new CountingListener();
+            counting.add(listener);
+            dispatcher.add(listener);
+        }
+        for (int i = 0; i < batch; i++) {
+            activities.add(new TorrentActivity(HashCodec.hexToBase32(String.format("%040x", i))));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public void publish() {
+        dispatcher.torrentProgress(activities);
+    }
+
+    @Benchmark
+    public void deliver() {
+        long expected = received() + (long) batch * listeners;
+        dispatcher.torrentProgress(activities);
+        while (received() < expected) {
+            Thread.yield();
+        }
+    }
+
+    private long received() {
+        long result = 0;
+        for (CountingListener listener : counting) {
+            result += listener.received.get();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,118 @@
+package me.rkfg.pfe;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One tick of {@link ProgressTracker} over simulated torrents: the status updates of the torrents that changed since
+ * the previous tick are applied, then the idle seeds are checked, the listeners notified and the scheduler run. Half of
+ * the torrents download and half seed, {@code updated} percent of them report a change every tick. The snapshot
+ * benchmarks read the published state of all torrents and of the ones changed by the last tick.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressTickBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int torrents;
+
+    @Param({ "10" })
+    public int updated;
+
+    private static final long SIZE = 1L << 30;
+
+    private TorrentRegistry registry;
+    private ListenerDispatcher dispatcher;
+    private ProgressTracker tracker;
+    private TorrentRegistry.Entry[] entries;
+    private float[] progress;
+    private long[] upload;
+    private Random random = new Random(1);
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        // no seeding limits, stopping a torrent needs a real handle
+        SettingsStorage settingsStorage = BenchmarkSettings.create("seeding_ratio", "0", "seeding_timeout", "0");
+        registry = new TorrentRegistry();
+        dispatcher = new ListenerDispatcher(new Metrics());
+        dispatcher.add(new PFEListenerAdapter() {
+        });
+        tracker = new ProgressTracker(null, registry, settingsStorage, dispatcher, new Metrics());
+        entries = new TorrentRegistry.Entry[torrents];
+        progress = new float[torrents];
+        upload = new long[torrents];
+        for (int i = 0; i < torrents; i++) {
+            entries[i] = registry.register(i, null, null, BenchmarkSettings.randomHex(random));
+            entries[i].getActivity().size = SIZE;
+            progress[i] = i % 2 == 0 ? 1 : random.nextFloat();
+        }
+        tick();
+        tick();
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reset() {
+        // keep the downloads from finishing during long runs
+        for (int i = 1; i < torrents; i += 2) {
+            progress[i] = random.nextFloat();
+        }
+    }
+
+    @Benchmark
+    public Set<TorrentActivity> tick() {
+        Set<TorrentActivity> changed = new HashSet<>();
+        Set<TorrentActivity> stopped = new HashSet<>();
+        long now = System.nanoTime();
+        int count = torrents * updated / 100;
+        for (int n = 0; n < count; n++) {
+            int i = next;
+            next = (next + 1) % torrents;
+            boolean seed = progress[i] >= 1;
+            if (seed) {
+                upload[i] += 16384;
+            } else {
+                progress[i] = Math.min(0.99f, progress[i] + 0.001f);
+            }
+            tracker.apply(entries[i], false, progress[i], 10, seed, upload[i], now, changed, stopped);
+        }
+        tracker.finishTick(now, changed, stopped);
+        return changed;
+    }
+
+    @Benchmark
+    public TorrentSnapshot fullSnapshot() {
+        return registry.snapshot(null, -1);
+    }
+
+    @Benchmark
+    public TorrentSnapshot deltaSnapshot() {
+        return registry.snapshot(null, registry.getVersion() - 1);
+    }
+}
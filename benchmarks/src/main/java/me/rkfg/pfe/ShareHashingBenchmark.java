@@ -0,0 +1,143 @@
+package me.rkfg.pfe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.frostwire.jlibtorrent.swig.create_torrent;
+import com.frostwire.jlibtorrent.swig.file_storage;
+
+/**
+ * Hashing done by {@code PFECore.share()} for the three layouts it supports: a single file, several files from
+ * different directories (MULTIFILE) and a directory tree (ONEDIR). The files are created once per trial so after the
+ * first iteration they're read from the page cache and the result is the hashing speed rather than the disk speed.
+ * Throughput is reported in hashed bytes per second by the {@code bytes} counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShareHashingBenchmark {
+
+    public enum Layout {
+        SINGLE, MULTIFILE, ONEDIR
+    }
+
+    @Param({ "SINGLE", "MULTIFILE", "ONEDIR" })
+    public Layout layout;
+
+    @Param({ "65536", "1048576", "4194304" })
+    public int pieceSize;
+
+    @Param({ "256" })
+    public int totalMegabytes;
+
+    @Param({ "0" })
+    public int threads;
+
+    // files per layout, ONEDIR spreads them over this many subdirectories
+    private static final int FILES = 16;
+    private static final int SUBDIRS = 4;
+
+    private File root;
+    private file_storage fs;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        // loads the native library
+        PFECore.INSTANCE.name();
+        root = Files.createTempDirectory("pfe_bench").toFile();
+        fs = new file_storage();
+        long total = (long) totalMegabytes << 20;
+        Random random = new Random(1);
+        switch (layout) {
+        case SINGLE:
+            createFile("single.bin", total, random);
+            break;
+        case MULTIFILE:
+            // share() keeps the parent directory name of every file
+            for (int i = 0; i < FILES; i++) {
+                createFile("dir" + i + File.separator + "file" + i + ".bin", total / FILES, random);
+            }
+            break;
+        case ONEDIR:
+            for (int i = 0; i < FILES; i++) {
+                createFile("share" + File.separator + "sub" + i % SUBDIRS + File.separator + "file" + i + ".bin", total / FILES,
+                        random);
+            }
+            break;
+        }
+    }
+
+    private void createFile(String path, long size, Random random) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        byte[] buf = new byte[1 << 20];
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += buf.length) {
+                random.nextBytes(buf);
+                out.write(buf, 0, (int) Math.min(buf.length, size - written));
+            }
+        }
+        fs.add_file(path, size);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Benchmark
+    public void hash(Bytes counter) {
+        create_torrent ct = new create_torrent(fs, pieceSize);
+        counter.bytes += new PieceHasher(threads, null).hash(ct, fs, root.getPath(), null);
+    }
+}
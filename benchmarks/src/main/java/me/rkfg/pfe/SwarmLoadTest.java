@@ -0,0 +1,385 @@
+package me.rkfg.pfe;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test running a whole swarm on the loopback interface. Starts an {@link EmbeddedTracker}, announced to over UDP
+ * unless {@code --http} is given, and the requested number of {@link SwarmNode} JVMs: the first one seeds a generated
+ * dataset through {@code share()}, the others download it with {@code addTorrent()}. Reports the aggregate download throughput, the time to completion of every downloader
+ * and the CPU time and heap of every node, both to stdout and as JSON.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar me.rkfg.pfe.SwarmLoadTest [--nodes 4] [--size 256] [--files 8] [--timeout 600]
+ *     [--port 17000] [--profile default] [--heap 512m] [--out swarm-result.json] [--work dir] [--http] [--verbose]
+ * </pre>
+ */
+public class SwarmLoadTest {
+
+    private static final long HASH_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    // announce interval of the tracker in seconds, short to form the swarm quickly
+    private static final int TRACKER_INTERVAL = 5;
+
+    private int nodes = 4;
+    private int sizeMegabytes = 256;
+    private int files = 8;
+    private int timeout = 600;
+    private int basePort = 17000;
+    private String profile = "default";
+    private String heap = "512m";
+    private String out = "swarm-result.json";
+    private File work;
+    private boolean http;
+    private boolean verbose;
+
+    private EmbeddedTracker tracker = new EmbeddedTracker(TRACKER_INTERVAL, new Metrics());
+    private List<Node> running = new ArrayList<>();
+    private CountDownLatch leechersDone;
+    private long swarmStart;
+
+    private class Node {
+        int index;
+        boolean seed;
+        Process process;
+        Thread reader;
+        CountDownLatch hashReady = new CountDownLatch(1);
+        volatile String hash;
+        // nanoTime of the DONE report, 0 until then
+        volatile long doneAt;
+        volatile long received;
+        volatile long sent;
+        volatile long cpuNanos = -1;
+        volatile long peakHeap;
+
+        Node(int index, boolean seed) {
+            this.index = index;
+            this.seed = seed;
+        }
+
+        void start(List<String> command) throws IOException {
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            reader = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "Swarm node " + index);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void read() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(SwarmNode.PREFIX)) {
+                        handle(line.substring(SwarmNode.PREFIX.length()).split(" "));
+                    } else if (verbose) {
+                        System.out.println("[node " + index + "] " + line);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Node " + index + " output failed: " + e.getMessage());
+            }
+            // the node died or stopped, don't let the waiting threads hang
+            hashReady.countDown();
+        }
+
+        private void handle(String[] message) {
+            switch (message[0]) {
+            case SwarmNode.HASH:
+                hash = message[1];
+                hashReady.countDown();
+                break;
+            case SwarmNode.DONE:
+                if (doneAt == 0) {
+                    doneAt = System.nanoTime();
+                    leechersDone.countDown();
+                }
+                break;
+            case SwarmNode.STATS:
+                received = Long.parseLong(message[2]);
+                sent = Long.parseLong(message[3]);
+                cpuNanos = Long.parseLong(message[4]);
+                peakHeap = Long.parseLong(message[6]);
+                break;
+            }
+        }
+
+        void stop() throws IOException {
+            process.getOutputStream().close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SwarmLoadTest test = new SwarmLoadTest();
+        test.parseArgs(args);
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--verbose")) {
+                verbose = true;
+                continue;
+            }
+            if (arg.equals("--http")) {
+                http = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+            case "--nodes":
+                nodes = Integer.parseInt(value);
+                break;
+            case "--size":
+                sizeMegabytes = Integer.parseInt(value);
+                break;
+            case "--files":
+                files = Integer.parseInt(value);
+                break;
+            case "--timeout":
+                timeout = Integer.parseInt(value);
+                break;
+            case "--port":
+                basePort = Integer.parseInt(value);
+                break;
+            case "--profile":
+                profile = value;
+                break;
+            case "--heap":
+                heap = value;
+                break;
+            case "--out":
+                out = value;
+                break;
+            case "--work":
+                work = new File(value).getAbsoluteFile();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (nodes < 2) {
+            throw new IllegalArgumentException("At least two nodes are needed");
+        }
+        if (work == null) {
+            work = Files.createTempDirectory("pfe_swarm").toFile();
+        }
+    }
+
+    private boolean run() throws IOException, InterruptedException {
+        tracker.start("127.0.0.1", 0);
+        leechersDone = new CountDownLatch(nodes - 1);
+        try {
+            File dataset = new File(nodeDir(0), "dataset");
+            System.out.printf("Generating %d MB in %d files at %s%n", sizeMegabytes, files, dataset);
+            generate(dataset);
+            Node seed = launch(0, true, dataset.getPath());
+            if (!seed.hashReady.await(HASH_TIMEOUT, TimeUnit.MILLISECONDS) || seed.hash == null) {
+                System.err.println("The seed didn't share the dataset, run with --verbose to see its output");
+                return false;
+            }
+            System.out.printf("Seeding %s, starting %d downloaders%n", seed.hash, nodes - 1);
+            swarmStart = System.nanoTime();
+            for (int i = 1; i < nodes; i++) {
+                launch(i, false, seed.hash, new File(nodeDir(i), "download").getPath());
+            }
+            boolean completed = leechersDone.await(timeout, TimeUnit.SECONDS);
+            if (!completed) {
+                System.err.println("Timed out after " + timeout + " s");
+            }
+            return completed;
+        } finally {
+            stopAll();
+            tracker.stop();
+            if (swarmStart > 0) {
+                report();
+            }
+        }
+    }
+
+    private File nodeDir(int index) {
+        return new File(work, "node" + index);
+    }
+
+    private void generate(File dataset) throws IOException {
+        dataset.mkdirs();
+        Random random = new Random(1);
+        byte[] buf = new byte[1 << 20];
+        long size = ((long) sizeMegabytes << 20) / files;
+        for (int i = 0; i < files; i++) {
+            try (RandomAccessFile file = new RandomAccessFile(new File(dataset, "file" + i + ".bin"), "rw")) {
+                for (long written = 0; written < size; written += buf.length) {
+                    random.nextBytes(buf);
+                    file.write(buf, 0, (int) Math.min(buf.length, size - written));
+                }
+            }
+        }
+    }
+
+    private Node launch(int index, boolean seed, String... args) throws IOException {
+        File dir = nodeDir(index);
+        dir.mkdirs();
+        File ini = writeSettings(dir, basePort + index);
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        command.add("-Xmx" + heap);
+        command.add("-Dpfe.settings=" + ini.getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SwarmNode.class.getName());
+        command.add(seed ? "seed" : "leech");
+        command.addAll(Arrays.asList(args));
+        Node node = new Node(index, seed);
+        node.start(command);
+        running.add(node);
+        return node;
+    }
+
+    private File writeSettings(File dir, int port) throws IOException {
+        Properties settings = new Properties();
+        settings.setProperty("trackers", tracker.getAnnounceUrls("127.0.0.1").get(http ? 1 : 0));
+        settings.setProperty("enable_dht", "false");
+        settings.setProperty("seeding_ratio", "0");
+        settings.setProperty("seeding_timeout", String.valueOf(TimeUnit.DAYS.toSeconds(1)));
+        settings.setProperty("seed_after_download", "true");
+        settings.setProperty("performance_profile", profile);
+        settings.setProperty("listen_interfaces", "127.0.0.1:" + port);
+        settings.setProperty("state_dir", new File(dir, "state").getPath());
+        settings.setProperty("hash_cache_file", new File(dir, "hashes.cache").getPath());
+        settings.setProperty("metadata_dir", new File(dir, "metadata").getPath());
+        settings.setProperty("metrics_interval", "1");
+        settings.setProperty("metrics_jmx", "false");
+        // every node has the same address, only the tracker should find the peers
+        settings.setProperty("lt.allow_multiple_connections_per_ip", "true");
+        settings.setProperty("lt.enable_lsd", "false");
+        settings.setProperty("lt.enable_upnp", "false");
+        settings.setProperty("lt.enable_natpmp", "false");
+        File ini = new File(dir, "pfe_settings.ini");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(ini), StandardCharsets.UTF_8)) {
+            settings.store(writer, "swarm load test node");
+        }
+        return ini;
+    }
+
+    private void stopAll() throws InterruptedException {
+        for (Node node : running) {
+            try {
+                node.stop();
+            } catch (IOException e) {
+                // already dead
+            }
+        }
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        for (Node node : running) {
+            node.reader.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (node.reader.isAlive()) {
+                System.err.println("Node " + node.index + " didn't stop, killing it");
+                node.process.destroy();
+            }
+        }
+    }
+
+    private void report() throws IOException {
+        long received = 0;
+        long lastDone = 0;
+        List<Double> completions = new ArrayList<>();
+        for (Node node : running) {
+            if (!node.seed) {
+                received += node.received;
+                if (node.doneAt > 0) {
+                    completions.add(seconds(node.doneAt - swarmStart));
+                    lastDone = Math.max(lastDone, node.doneAt);
+                }
+            }
+        }
+        double duration = seconds((lastDone > 0 ? lastDone : System.nanoTime()) - swarmStart);
+        double throughput = duration > 0 ? received / duration / (1 << 20) : 0;
+        System.out.printf(Locale.ROOT, "%-6s %-6s %12s %12s %12s %10s %10s%n", "node", "role", "done, s", "down, MB", "up, MB",
+                "cpu, s", "heap, MB");
+        for (Node node : running) {
+            System.out.printf(Locale.ROOT, "%-6d %-6s %12s %12.1f %12.1f %10.1f %10.1f%n", node.index, node.seed ? "seed" : "leech",
+                    node.seed ? "-" : node.doneAt > 0 ? String.format(Locale.ROOT, "%.1f", seconds(node.doneAt - swarmStart)) : "n/a",
+                    megabytes(node.received), megabytes(node.sent), node.cpuNanos / 1e9, megabytes(node.peakHeap));
+        }
+        System.out.printf(Locale.ROOT, "%d of %d downloads completed, aggregate throughput %.1f MB/s over %.1f s%n",
+                completions.size(), nodes - 1, throughput, duration);
+        if (!completions.isEmpty()) {
+            System.out.printf(Locale.ROOT, "Time to completion: min %.1f s, avg %.1f s, max %.1f s%n", Collections.min(completions),
+                    average(completions), Collections.max(completions));
+        }
+        writeJson(completions, received, duration, throughput);
+        System.out.println("Results written to " + new File(out).getAbsolutePath());
+    }
+
+    private void writeJson(List<Double> completions, long received, double duration, double throughput) throws IOException {
+        try (PrintWriter json = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8))) {
+            json.println("{");
+            json.printf(Locale.ROOT, "  \"nodes\": %d,%n", nodes);
+            json.printf(Locale.ROOT, "  \"datasetBytes\": %d,%n", ((long) sizeMegabytes << 20) / files * files);
+            json.printf(Locale.ROOT, "  \"files\": %d,%n", files);
+            json.printf(Locale.ROOT, "  \"profile\": \"%s\",%n", profile);
+            json.printf(Locale.ROOT, "  \"completed\": %d,%n", completions.size());
+            json.printf(Locale.ROOT, "  \"durationSeconds\": %.3f,%n", duration);
+            if (!completions.isEmpty()) {
+                json.printf(Locale.ROOT, "  \"timeToCompletionSeconds\": {\"min\": %.3f, \"avg\": %.3f, \"max\": %.3f},%n",
+                        Collections.min(completions), average(completions), Collections.max(completions));
+            }
+            json.printf(Locale.ROOT, "  \"receivedBytes\": %d,%n", received);
+            json.printf(Locale.ROOT, "  \"throughputMegabytesPerSecond\": %.3f,%n", throughput);
+            json.println("  \"sessions\": [");
+            for (int i = 0; i < running.size(); i++) {
+                Node node = running.get(i);
+                json.printf(Locale.ROOT,
+                        "    {\"node\": %d, \"role\": \"%s\", \"completionSeconds\": %s, \"receivedBytes\": %d, \"sentBytes\": %d, "
+                                + "\"cpuSeconds\": %.3f, \"peakHeapBytes\": %d}%s%n",
+                        node.index, node.seed ? "seed" : "leech",
+                        node.doneAt > 0 ? String.format(Locale.ROOT, "%.3f", seconds(node.doneAt - swarmStart)) : "null",
+                        node.received, node.sent, node.cpuNanos / 1e9, node.peakHeap, i + 1 < running.size() ? "," : "");
+            }
+            json.println("  ]");
+            json.println("}");
+        }
+    }
+
+    private static double average(List<Double> values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.size();
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static double megabytes(long bytes) {
+        return bytes / (double) (1 << 20);
+    }
+}
@@ -0,0 +1,133 @@
+package me.rkfg.pfe;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+
+import com.frostwire.jlibtorrent.TorrentHandle;
+
+/**
+ * A single swarm member started by {@link SwarmLoadTest} in its own JVM, as {@link PFECore} is a singleton. Talks to
+ * the parent through stdout lines starting with {@link #PREFIX} and stops when its stdin is closed.
+ *
+ * <pre>
+ * SwarmNode seed &lt;dataset directory&gt;
+ * SwarmNode leech &lt;Base32 hash&gt; &lt;download directory&gt;
+ * </pre>
+ *
+ * The settings file is passed with -Dpfe.settings.
+ */
+public class SwarmNode {
+
+    public static final String PREFIX = "SWARM ";
+    public static final String HASH = "HASH";
+    public static final String DONE = "DONE";
+    public static final String STATS = "STATS";
+
+    private static final long STATS_INTERVAL = 1000;
+
+    private static final String SENT = "pfe_session_sent_payload_bytes_total";
+    private static final String RECEIVED = "pfe_session_received_payload_bytes_total";
+
+    private static long started = System.nanoTime();
+
+    public static void main(String[] args) throws IOException {
+        LogManager.getRootLogger().setLevel(Level.WARN);
+        final PFECore core = PFECore.INSTANCE;
+        core.init(new SettingsStorage(SwarmNode.class));
+        if ("seed".equals(args[0])) {
+            TorrentHandle handle = core.share(null, args[1]);
+            handle.resume();
+            try {
+                send(HASH, PFECore.getHash(handle));
+            } catch (DecoderException e) {
+                throw new PFEException("Can't get the hash of the shared torrent", e);
+            }
+        } else {
+            final String hash = args[1];
+            core.addPFEListener(new PFEListenerAdapter() {
+
+                private boolean done;
+
+                @Override
+                public void torrentProgress(Collection<TorrentActivity> torrentActivities) {
+                    for (TorrentActivity activity : torrentActivities) {
+                        if (!done && activity.complete && hash.equals(activity.hash)) {
+                            done = true;
+                            send(DONE, hash);
+                        }
+                    }
+                }
+            });
+            new File(args[2]).mkdirs();
+            core.addTorrent(hash, args[2]).resume();
+        }
+        final AtomicLong peakHeap = new AtomicLong();
+        Timer timer = new Timer("Swarm stats", true);
+        timer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                sendStats(core, peakHeap);
+            }
+        }, STATS_INTERVAL, STATS_INTERVAL);
+        // the parent closes stdin to stop the node
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+        while (stdin.readLine() != null) {
+            // wait for EOF
+        }
+        timer.cancel();
+        sendStats(core, peakHeap);
+        core.stop();
+        System.exit(0);
+    }
+
+    private static void sendStats(PFECore core, AtomicLong peakHeap) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heap = memory.getHeapMemoryUsage().getUsed();
+        if (heap > peakHeap.get()) {
+            peakHeap.set(heap);
+        }
+        Map<String, Double> values = core.getMetrics().values();
+        send(STATS, elapsed() + " " + value(values, RECEIVED) + " " + value(values, SENT) + " " + cpuTime() + " " + heap + " "
+                + peakHeap.get());
+    }
+
+    private static long value(Map<String, Double> values, String name) {
+        Double value = values.get(name);
+        return value == null ? 0 : value.longValue();
+    }
+
+    /**
+     * @return CPU time used by the JVM in nanoseconds or -1 if the platform doesn't tell
+     */
+    private static long cpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long elapsed() {
+        return (System.nanoTime() - started) / 1000000;
+    }
+
+    private static synchronized void send(String type, String value) {
+        System.out.println(PREFIX + type + " " + value);
+        System.out.flush();
+    }
+}
@@ -18,9 +18,13 @@ public abstract class AbstractSettingsStorage {
     protected Properties properties = new Properties();
     protected Logger log = LoggerFactory.getLogger(getClass());
     private String iniFile;
+    private String baseDirectory;
+    private long lastModified;
 
     protected AbstractSettingsStorage(Class<?> clazz, String filename) {
-        iniFile = new File(getJarDirectory(clazz), filename).getAbsolutePath();
+        baseDirectory = getJarDirectory(clazz);
+        iniFile = resolvePath(filename);
+        lastModified = new File(iniFile).lastModified();
         try {
             properties.load(new InputStreamReader(new FileInputStream(new File(iniFile)), StandardCharsets.UTF_8));
         } catch (IOException e) {
@@ -28,14 +32,50 @@ public abstract class AbstractSettingsStorage {
         }
     }
 
+    /**
+     * Read the file again if it was modified since the last load. The current properties aren't replaced, the caller
+     * does it once the new ones are validated.
+     *
+     * @return the new properties or null if the file is unchanged or can't be read
+     */
+    protected Properties reloadProperties() {
+        File file = new File(iniFile);
+        long modified = file.lastModified();
+        if (modified == lastModified) {
+            return null;
+        }
+        Properties reloaded = new Properties();
+        try (InputStreamReader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            reloaded.load(reader);
+        } catch (IOException e) {
+            log.warn("Can't reload {}: {}", iniFile, e.getMessage());
+            return null;
+        }
+        // a malformed file isn't retried until it's modified again
+        lastModified = modified;
+        return reloaded;
+    }
+
     protected void storeProperties() {
         try {
             properties.store(new OutputStreamWriter(new FileOutputStream(new File(iniFile)), StandardCharsets.UTF_8), "");
+            lastModified = new File(iniFile).lastModified();
         } catch (IOException e) {
             log.info("{} can't be saved, path info will always be default.", iniFile);
         }
     }
 
+    /**
+     * @return the path itself if it's absolute or the path relative to the jar directory otherwise
+     */
+    protected String resolvePath(String path) {
+        File file = new File(path);
+        if (file.isAbsolute()) {
+            return file.getPath();
+        }
+        return new File(baseDirectory, path).getAbsolutePath();
+    }
+
     public static String getJarDirectory(Class<?> clazz) {
         try {
             return new File(URLDecoder.decode(clazz.getProtectionDomain().getCodeSource().getLocation().getPath(),
@@ -0,0 +1,188 @@
+package me.rkfg.pfe;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.TorrentAlert;
+import com.frostwire.jlibtorrent.alerts.TorrentRemovedAlert;
+
+/**
+ * The only alert listener registered in the session. Session-wide listeners are indexed by alert type, torrent alerts
+ * are additionally routed to the listeners of that torrent found by its info hash, so the cost of an alert doesn't
+ * depend on the number of torrents. Torrent listeners are dropped when the torrent is removed.
+ */
+public class AlertRouter implements AlertListener {
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private TorrentRegistry registry;
+    private Metrics.Timer dispatchTimer;
+
+    // alert type => listeners
+    private ConcurrentMap<Integer, List<AlertListener>> byType = new ConcurrentHashMap<>();
+    // listeners that want every alert
+    private List<AlertListener> any = new CopyOnWriteArrayList<>();
+    // info hash (hex) => torrent subscriptions
+    private ConcurrentMap<String, List<Subscription>> byTorrent = new ConcurrentHashMap<>();
+
+    private static class Subscription {
+        AlertListener listener;
+        // queried once on subscription, null means all types
+        int[] types;
+
+        public Subscription(AlertListener listener) {
+            this.listener = listener;
+            this.types = listener.types();
+        }
+
+        public boolean accepts(int type) {
+            if (types == null) {
+                return true;
+            }
+            for (int t : types) {
+                if (t == type) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public AlertRouter(TorrentRegistry registry, Metrics metrics) {
+        this.registry = registry;
+        this.dispatchTimer = metrics.timer("pfe_alert_dispatch_seconds", "Time spent delivering an alert to the listeners");
+    }
+
+    @Override
+    public int[] types() {
+        return null;
+    }
+
+    @Override
+    public void alert(Alert<?> alert) {
+        long start = dispatchTimer.start();
+        try {
+            route(alert);
+        } finally {
+            dispatchTimer.stop(start);
+        }
+    }
+
+    private void route(Alert<?> alert) {
+        int type = alert.type().getSwig();
+        dispatch(any, alert);
+        List<AlertListener> listeners = byType.get(type);
+        if (listeners != null) {
+            dispatch(listeners, alert);
+        }
+        if (alert instanceof TorrentAlert && !byTorrent.isEmpty()) {
+            String hash = infoHash(alert);
+            if (hash != null) {
+                List<Subscription> subscriptions = byTorrent.get(hash);
+                if (subscriptions != null) {
+                    for (Subscription subscription : subscriptions) {
+                        if (subscription.accepts(type)) {
+                            notify(subscription.listener, alert);
+                        }
+                    }
+                }
+                if (alert.type() == AlertType.TORRENT_REMOVED) {
+                    byTorrent.remove(hash);
+                }
+            }
+        }
+    }
+
+    private String infoHash(Alert<?> alert) {
+        if (alert instanceof TorrentRemovedAlert) {
+            // the handle is no longer valid
+            return ((TorrentRemovedAlert) alert).infoHash().toHex();
+        }
+        TorrentHandle handle = ((TorrentAlert<?>) alert).handle();
+        TorrentRegistry.Entry entry = registry.get(handle.getSwig().id());
+        if (entry != null) {
+            return entry.getHex();
+        }
+        return handle.isValid() ? handle.getInfoHash().toHex() : null;
+    }
+
+    private void dispatch(List<AlertListener> listeners, Alert<?> alert) {
+        for (AlertListener listener : listeners) {
+            notify(listener, alert);
+        }
+    }
+
+    private void notify(AlertListener listener, Alert<?> alert) {
+        try {
+            listener.alert(alert);
+        } catch (RuntimeException e) {
+            log.error("Alert listener {} failed on {}", listener, alert.what(), e);
+        }
+    }
+
+    /**
+     * Subscribe to the session alerts of the types returned by {@link AlertListener#types()}, null means all alerts.
+     */
+    public void addListener(AlertListener listener) {
+        int[] types = listener.types();
+        if (types == null) {
+            any.add(listener);
+            return;
+        }
+        for (int type : types) {
+            List<AlertListener> listeners = byType.get(type);
+            if (listeners == null) {
+                listeners = new CopyOnWriteArrayList<>();
+                List<AlertListener> existing = byType.putIfAbsent(type, listeners);
+                if (existing != null) {
+                    listeners = existing;
+                }
+            }
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(AlertListener listener) {
+        any.remove(listener);
+        for (List<AlertListener> listeners : byType.values()) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Subscribe to the alerts of a single torrent of the types returned by {@link AlertListener#types()}. The listener
+     * is removed automatically after the torrent is removed.
+     */
+    public void addTorrentListener(TorrentHandle handle, AlertListener listener) {
+        String hash = registry.register(handle).getHex();
+        List<Subscription> subscriptions = byTorrent.get(hash);
+        if (subscriptions == null) {
+            subscriptions = new CopyOnWriteArrayList<>();
+            List<Subscription> existing = byTorrent.putIfAbsent(hash, subscriptions);
+            if (existing != null) {
+                subscriptions = existing;
+            }
+        }
+        subscriptions.add(new Subscription(listener));
+    }
+
+    public void removeTorrentListener(TorrentHandle handle, AlertListener listener) {
+        List<Subscription> subscriptions = byTorrent.get(registry.register(handle).getHex());
+        if (subscriptions != null) {
+            for (Subscription subscription : subscriptions) {
+                if (subscription.listener == listener) {
+                    subscriptions.remove(subscription);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package me.rkfg.pfe;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.frostwire.jlibtorrent.AddTorrentParams;
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.alerts.AddTorrentAlert;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.TorrentRemovedAlert;
+
+/**
+ * Adds and removes torrents in bulk using the asynchronous libtorrent calls. Adds are submitted from a separate thread
+ * with a limited number in flight, the returned futures are completed when the corresponding alerts arrive. The add
+ * alerts may be dropped if the alert queue overflows, so the adds not confirmed in time are resolved by looking the
+ * torrent up in the session and their permits are returned.
+ */
+public class BulkTorrentOperations implements AlertListener {
+
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private SessionShards sessions;
+    private long addTimeout;
+    private Callback callback;
+    // info hash (hex) => pending operation
+    private ConcurrentMap<String, PendingAdd> adds = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, PFEFuture<Void>> removals = new ConcurrentHashMap<>();
+    private ScheduledExecutorService submitter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Torrent adder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    interface Callback {
+        TorrentHandle find(String base32hash);
+
+        AddTorrentParams createParams(String base32hash, String savePath);
+
+        void added(TorrentHandle handle, String base32hash, String savePath);
+
+        void removing(TorrentHandle handle);
+    }
+
+    private static class PendingAdd {
+        String base32hash;
+        String savePath;
+        PFEFuture<TorrentHandle> future;
+        Semaphore permits;
+        long expires;
+    }
+
+    BulkTorrentOperations(SessionShards sessions, long addTimeout, Callback callback) {
+        this.sessions = sessions;
+        this.addTimeout = addTimeout;
+        this.callback = callback;
+        submitter.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                expire(System.currentTimeMillis());
+            }
+        }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int[] types() {
+        return new int[] { AlertType.ADD_TORRENT.getSwig(), AlertType.TORRENT_REMOVED.getSwig() };
+    }
+
+    @Override
+    public void alert(Alert<?> alert) {
+        if (alert instanceof AddTorrentAlert) {
+            added((AddTorrentAlert) alert);
+        } else if (alert instanceof TorrentRemovedAlert) {
+            PFEFuture<Void> future = removals.remove(((TorrentRemovedAlert) alert).infoHash().toHex());
+            if (future != null) {
+                future.complete(null);
+            }
+        }
+    }
+
+    private void added(AddTorrentAlert alert) {
+        boolean failed = alert.error().value() != 0;
+        String hex = failed ? alert.params().infoHash().toHex() : alert.handle().getInfoHash().toHex();
+        PendingAdd pending = adds.remove(hex);
+        if (pending == null) {
+            // added by someone else or already expired
+            return;
+        }
+        pending.permits.release();
+        if (failed) {
+            pending.future.fail(new PFEException("Can't add torrent " + pending.base32hash + ": " + alert.error().message()));
+            return;
+        }
+        complete(pending, alert.handle());
+    }
+
+    /**
+     * Resolve the adds whose alerts didn't arrive in time: the torrent is either in the session already or the add is
+     * considered failed.
+     */
+    private void expire(long now) {
+        for (Map.Entry<String, PendingAdd> entry : adds.entrySet()) {
+            PendingAdd pending = entry.getValue();
+            if (pending.expires > now || !adds.remove(entry.getKey(), pending)) {
+                continue;
+            }
+            pending.permits.release();
+            try {
+                TorrentHandle handle = callback.find(pending.base32hash);
+                if (handle != null && handle.isValid()) {
+                    log.debug("Add of torrent {} wasn't confirmed but it's in the session", pending.base32hash);
+                    complete(pending, handle);
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                log.warn("Can't check torrent {}: {}", pending.base32hash, e.getMessage());
+            }
+            pending.future.fail(new PFEException("Torrent " + pending.base32hash + " wasn't added in time"));
+        }
+    }
+
+    private void complete(PendingAdd pending, TorrentHandle handle) {
+        try {
+            callback.added(handle, pending.base32hash, pending.savePath);
+        } finally {
+            pending.future.complete(handle);
+        }
+    }
+
+    public Map<String, Future<TorrentHandle>> addAll(Collection<String> base32Hashes, final String savePath, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Invalid number of adds in flight: " + maxInFlight);
+        }
+        final Map<String, PFEFuture<TorrentHandle>> futures = new LinkedHashMap<>();
+        final Semaphore permits = new Semaphore(maxInFlight);
+        for (String hash : base32Hashes) {
+            futures.put(hash, new PFEFuture<TorrentHandle>());
+        }
+        submitter.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                for (Map.Entry<String, PFEFuture<TorrentHandle>> entry : futures.entrySet()) {
+                    PFEFuture<TorrentHandle> future = entry.getValue();
+                    if (future.isCancelled()) {
+                        continue;
+                    }
+                    try {
+                        // this thread also runs the sweeps, do them while waiting for the lost adds to expire
+                        while (!permits.tryAcquire(SWEEP_INTERVAL, TimeUnit.MILLISECONDS)) {
+                            expire(System.currentTimeMillis());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        future.fail(e);
+                        continue;
+                    }
+                    submit(entry.getKey(), savePath, future, permits);
+                }
+            }
+        });
+        return new LinkedHashMap<String, Future<TorrentHandle>>(futures);
+    }
+
+    private void submit(String base32hash, String savePath, PFEFuture<TorrentHandle> future, Semaphore permits) {
+        PendingAdd pending = new PendingAdd();
+        pending.base32hash = base32hash;
+        pending.savePath = savePath;
+        pending.future = future;
+        pending.permits = permits;
+        pending.expires = System.currentTimeMillis() + addTimeout;
+        String hex = null;
+        try {
+            AddTorrentParams params = callback.createParams(base32hash, savePath);
+            String key = HashCodec.base32ToHex(base32hash);
+            if (adds.putIfAbsent(key, pending) != null) {
+                throw new PFEException("Torrent " + base32hash + " is already being added");
+            }
+            hex = key;
+            sessions.get(key).asyncAddTorrent(params);
+        } catch (RuntimeException e) {
+            log.warn("Can't add torrent {}: {}", base32hash, e.getMessage());
+            if (hex != null) {
+                adds.remove(hex, pending);
+            }
+            permits.release();
+            future.fail(e);
+        }
+    }
+
+    public Map<String, Future<Void>> removeAll(Collection<String> base32Hashes) {
+        Map<String, Future<Void>> result = new LinkedHashMap<>();
+        for (String hash : base32Hashes) {
+            TorrentHandle handle = callback.find(hash);
+            if (handle == null || !handle.isValid()) {
+                result.put(hash, PFEFuture.<Void> completed(null));
+                continue;
+            }
+            PFEFuture<Void> future = new PFEFuture<>();
+            String hex = HashCodec.base32ToHex(hash);
+            PFEFuture<Void> existing = removals.putIfAbsent(hex, future);
+            if (existing != null) {
+                result.put(hash, existing);
+                continue;
+            }
+            result.put(hash, future);
+            callback.removing(handle);
+            sessions.get(hex).removeTorrent(handle);
+        }
+        return result;
+    }
+
+    public void shutdown() {
+        submitter.shutdownNow();
+    }
+}
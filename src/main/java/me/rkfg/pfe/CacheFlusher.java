@@ -0,0 +1,99 @@
+package me.rkfg.pfe;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.CacheFlushedAlert;
+
+/**
+ * Write cache flushes of a torrent shared by all its open streams. libtorrent posts one cache flushed alert per flush
+ * request in the order of the requests, so every request gets a ticket and the n-th alert completes the n-th ticket. The
+ * alerts nobody asked for aren't counted.
+ */
+class CacheFlusher implements AlertListener {
+
+    private TorrentHandle handle;
+    private String hash;
+    private boolean sequential;
+    private long requested;
+    private long done;
+    private List<TorrentStream> streams = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param sequential
+     *            whether the torrent was downloaded sequentially before the first stream was opened
+     */
+    public CacheFlusher(TorrentHandle handle, String hash, boolean sequential) {
+        this.handle = handle;
+        this.hash = hash;
+        this.sequential = sequential;
+    }
+
+    /**
+     * @return info hash (hex) of the torrent
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return the sequential download flag to restore when the last stream is closed
+     */
+    public boolean isSequential() {
+        return sequential;
+    }
+
+    @Override
+    public int[] types() {
+        return new int[] { AlertType.CACHE_FLUSHED.getSwig() };
+    }
+
+    @Override
+    public void alert(Alert<?> alert) {
+        if (alert instanceof CacheFlushedAlert) {
+            synchronized (this) {
+                if (done == requested) {
+                    return;
+                }
+                done++;
+            }
+            // outside of the lock, the streams call request() and isDone() holding their own locks
+            for (TorrentStream stream : streams) {
+                stream.flushed();
+            }
+        }
+    }
+
+    /**
+     * Ask libtorrent to write the cached pieces to disk.
+     *
+     * @return ticket to pass to {@link #isDone(long)}
+     */
+    public synchronized long request() {
+        handle.flushCache();
+        return ++requested;
+    }
+
+    /**
+     * @return true if the flush with the ticket has reached the disk
+     */
+    public synchronized boolean isDone(long ticket) {
+        return done >= ticket;
+    }
+
+    public void attach(TorrentStream stream) {
+        streams.add(stream);
+    }
+
+    /**
+     * @return true if it was the last stream of the torrent
+     */
+    public boolean detach(TorrentStream stream) {
+        streams.remove(stream);
+        return streams.isEmpty();
+    }
+}
@@ -0,0 +1,470 @@
+package me.rkfg.pfe;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * BitTorrent tracker built into PFE for closed networks. Serves HTTP announces and the UDP tracker protocol (BEP 15)
+ * on the same port from a single NIO selector thread, the swarms are kept in a {@link SwarmTable} owned by that
+ * thread. Responses always use the compact peer list, only IPv4 peers are tracked. Scrapes aren't supported.
+ */
+public class EmbeddedTracker implements Runnable {
+
+    private static final long UDP_PROTOCOL_ID = 0x41727101980L;
+    private static final int UDP_CONNECT = 0;
+    private static final int UDP_ANNOUNCE = 1;
+    private static final int UDP_ERROR = 3;
+    private static final int UDP_EVENT_COMPLETED = 1;
+    private static final int UDP_EVENT_STOPPED = 3;
+    private static final int UDP_ANNOUNCE_SIZE = 98;
+    // BEP 15 connection ids are valid for two minutes, ours for one or two windows
+    private static final long CONNECTION_WINDOW = TimeUnit.MINUTES.toMillis(1);
+    private static final int DEFAULT_NUMWANT = 50;
+    private static final int MAX_NUMWANT = 200;
+    private static final int MAX_REQUEST = 4096;
+    private static final long HTTP_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private int interval;
+    private long peerTimeout;
+    private SwarmTable table = new SwarmTable();
+    private long secret = new SecureRandom().nextLong();
+    private Selector selector;
+    private ServerSocketChannel httpChannel;
+    private DatagramChannel udpChannel;
+    private Thread thread;
+    private volatile boolean running;
+    private int port;
+    // reused by the selector thread for every request
+    private ByteBuffer peers = ByteBuffer.allocate(MAX_NUMWANT * 6);
+    private ByteBuffer datagram = ByteBuffer.allocate(2048);
+    private ByteBuffer reply = ByteBuffer.allocate(20 + MAX_NUMWANT * 6);
+    private Metrics.Counter httpAnnounces;
+    private Metrics.Counter udpAnnounces;
+
+    private static class HttpConnection {
+        ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST);
+        ByteBuffer out;
+        long lastActive;
+    }
+
+    /**
+     * @param interval
+     *            announce interval in seconds sent to the clients, peers are forgotten after two missed announces
+     */
+    public EmbeddedTracker(int interval, Metrics metrics) {
+        this.interval = interval;
+        this.peerTimeout = TimeUnit.SECONDS.toMillis(interval) * 2 + SWEEP_INTERVAL;
+        httpAnnounces = metrics.counter("pfe_tracker_http_announces_total", "HTTP announces served by the embedded tracker");
+        udpAnnounces = metrics.counter("pfe_tracker_udp_announces_total", "UDP announces served by the embedded tracker");
+        final SwarmTable table = this.table;
+        metrics.gauge("pfe_tracker_peers", "Peers known to the embedded tracker", new Metrics.GaugeValue() {
+
+            @Override
+            public double get() {
+                return table.getPeerCount();
+            }
+        });
+        metrics.gauge("pfe_tracker_swarms", "Torrents known to the embedded tracker", new Metrics.GaugeValue() {
+
+            @Override
+            public double get() {
+                return table.getSwarmCount();
+            }
+        });
+    }
+
+    public void start(String address, int port) {
+        InetSocketAddress bindAddress = new InetSocketAddress(address, port);
+        try {
+            selector = Selector.open();
+            httpChannel = ServerSocketChannel.open();
+            httpChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            httpChannel.bind(bindAddress, 128);
+            httpChannel.configureBlocking(false);
+            httpChannel.register(selector, SelectionKey.OP_ACCEPT);
+            this.port = ((InetSocketAddress) httpChannel.getLocalAddress()).getPort();
+            udpChannel = DatagramChannel.open();
+            udpChannel.bind(new InetSocketAddress(bindAddress.getAddress(), this.port));
+            udpChannel.configureBlocking(false);
+            udpChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+            throw new PFEException("Can't start the embedded tracker on " + address + ":" + port + ": " + e.getMessage(), e);
+        }
+        running = true;
+        thread = new Thread(this, "Embedded tracker");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Embedded tracker is listening on {}:{} (HTTP and UDP)", address, this.port);
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        close();
+    }
+
+    private void close() {
+        try {
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.debug("Error closing the embedded tracker: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return the port the tracker listens on, useful when it was started on port 0
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @param host
+     *            host name or address the peers reach this machine at
+     * @return announce URLs of the tracker, UDP first as it's cheaper
+     */
+    public List<String> getAnnounceUrls(String host) {
+        return Arrays.asList("udp://" + host + ":" + port + "/announce", "http://" + host + ":" + port + "/announce");
+    }
+
+    @Override
+    public void run() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+        while (running) {
+            try {
+                selector.select(SWEEP_INTERVAL);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    handle(key);
+                }
+                selector.selectedKeys().clear();
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    nextSweep = now + SWEEP_INTERVAL;
+                    table.expire(now);
+                    closeIdle(now);
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Embedded tracker error: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.channel() == udpChannel) {
+            readDatagrams();
+            return;
+        }
+        if (key.isAcceptable()) {
+            SocketChannel channel;
+            while ((channel = httpChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                HttpConnection connection = new HttpConnection();
+                connection.lastActive = System.currentTimeMillis();
+                channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+            return;
+        }
+        SocketChannel channel = (SocketChannel) key.channel();
+        HttpConnection connection = (HttpConnection) key.attachment();
+        connection.lastActive = System.currentTimeMillis();
+        try {
+            if (key.isReadable()) {
+                readHttp(key, channel, connection);
+            } else if (key.isWritable()) {
+                channel.write(connection.out);
+                if (!connection.out.hasRemaining()) {
+                    channel.close();
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+        }
+    }
+
+    private void closeIdle(long now) throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof HttpConnection && now - ((HttpConnection) attachment).lastActive > HTTP_TIMEOUT) {
+                key.channel().close();
+            }
+        }
+    }
+
+    // HTTP
+
+    private void readHttp(SelectionKey key, SocketChannel channel, HttpConnection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        if (channel.read(in) < 0) {
+            channel.close();
+            return;
+        }
+        int end = headersEnd(in);
+        if (end < 0) {
+            if (!in.hasRemaining()) {
+                respond(key, connection, "431 Request Header Fields Too Large", failure("request too large"));
+            }
+            return;
+        }
+        String request = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+        String[] requestLine = request.substring(0, request.indexOf('\r')).split(" ");
+        if (requestLine.length < 2 || !requestLine[0].equals("GET")) {
+            respond(key, connection, "405 Method Not Allowed", failure("only GET is supported"));
+            return;
+        }
+        String target = requestLine[1];
+        int query = target.indexOf('?');
+        String path = query < 0 ? target : target.substring(0, query);
+        if (!path.equals("/announce")) {
+            respond(key, connection, "404 Not Found", failure("unknown path " + path));
+            return;
+        }
+        InetAddress remote = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        respond(key, connection, "200 OK", httpAnnounce(remote, query < 0 ? "" : target.substring(query + 1)));
+    }
+
+    /**
+     * @return position right after the empty line ending the headers or -1 if it wasn't received yet
+     */
+    private static int headersEnd(ByteBuffer in) {
+        byte[] data = in.array();
+        for (int i = 3; i < in.position(); i++) {
+            if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] httpAnnounce(InetAddress remote, String query) {
+        Map<String, String> params;
+        try {
+            params = parseQuery(query);
+        } catch (NumberFormatException e) {
+            // a malformed %xx escape
+            return failure("invalid encoding");
+        }
+        String infoHash = params.get("info_hash");
+        String portParam = params.get("port");
+        if (infoHash == null || infoHash.length() != 20 || portParam == null) {
+            return failure("info_hash and port are required");
+        }
+        int peerPort;
+        int numWant;
+        try {
+            peerPort = Integer.parseInt(portParam);
+            numWant = params.containsKey("numwant") ? Integer.parseInt(params.get("numwant")) : DEFAULT_NUMWANT;
+        } catch (NumberFormatException e) {
+            return failure("invalid number");
+        }
+        String event = params.get("event");
+        boolean seed = "0".equals(params.get("left")) || "completed".equals(event);
+        httpAnnounces.increment();
+        SwarmTable.Swarm swarm = announce(remote, peerPort, infoHash, seed, "stopped".equals(event), numWant);
+        StringBuilder sb = new StringBuilder();
+        sb.append("d8:completei").append(swarm == null ? 0 : swarm.getSeeds()).append('e');
+        sb.append("10:incompletei").append(swarm == null ? 0 : swarm.getLeechers()).append('e');
+        sb.append("8:intervali").append(interval).append('e');
+        sb.append("12:min intervali").append(interval / 2).append('e');
+        sb.append("5:peers").append(peers.position()).append(':');
+        byte[] head = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] result = new byte[head.length + peers.position() + 1];
+        System.arraycopy(head, 0, result, 0, head.length);
+        System.arraycopy(peers.array(), 0, result, head.length, peers.position());
+        result[result.length - 1] = 'e';
+        return result;
+    }
+
+    private void respond(SelectionKey key, HttpConnection connection, String status, byte[] body) throws IOException {
+        byte[] head = ("HTTP/1.0 " + status + "\r\nContent-Type: text/plain\r\nContent-Length: " + body.length
+                + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        connection.out = ByteBuffer.allocate(head.length + body.length);
+        connection.out.put(head).put(body).flip();
+        // the response almost always fits into the socket buffer, wait for OP_WRITE only if it doesn't
+        SocketChannel channel = (SocketChannel) key.channel();
+        channel.write(connection.out);
+        if (connection.out.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            channel.close();
+        }
+    }
+
+    private static byte[] failure(String reason) {
+        return ("d14:failure reason" + reason.length() + ":" + reason + "e").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decode the query keeping the binary values (info_hash, peer_id) intact as ISO-8859-1 strings.
+     */
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> result = new HashMap<>();
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                result.put(pair.substring(0, eq), urlDecode(pair.substring(eq + 1)));
+            }
+        }
+        return result;
+    }
+
+    private static String urlDecode(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < value.length()) {
+                sb.append((char) Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else if (c == '+') {
+                sb.append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // UDP
+
+    private void readDatagrams() throws IOException {
+        SocketAddress source;
+        datagram.clear();
+        while ((source = udpChannel.receive(datagram)) != null) {
+            datagram.flip();
+            reply.clear();
+            if (handleDatagram((InetSocketAddress) source)) {
+                reply.flip();
+                udpChannel.send(reply, source);
+            }
+            datagram.clear();
+        }
+    }
+
+    /**
+     * @return true if the reply should be sent
+     */
+    private boolean handleDatagram(InetSocketAddress source) {
+        if (datagram.remaining() < 16) {
+            return false;
+        }
+        long connectionId = datagram.getLong();
+        int action = datagram.getInt();
+        int transactionId = datagram.getInt();
+        if (action == UDP_CONNECT) {
+            if (connectionId != UDP_PROTOCOL_ID) {
+                return false;
+            }
+            reply.putInt(UDP_CONNECT).putInt(transactionId).putLong(connectionId(source, window(0)));
+            return true;
+        }
+        if (connectionId != connectionId(source, window(0)) && connectionId != connectionId(source, window(-1))) {
+            return udpError(transactionId, "invalid connection id");
+        }
+        if (action != UDP_ANNOUNCE) {
+            return udpError(transactionId, "unsupported action");
+        }
+        if (datagram.limit() < UDP_ANNOUNCE_SIZE) {
+            return udpError(transactionId, "announce too short");
+        }
+        byte[] hash = new byte[20];
+        datagram.get(hash);
+        // peer id, downloaded
+        datagram.position(datagram.position() + 28);
+        long left = datagram.getLong();
+        // uploaded
+        datagram.getLong();
+        int event = datagram.getInt();
+        // ip, key
+        datagram.position(datagram.position() + 8);
+        int numWant = datagram.getInt();
+        int peerPort = datagram.getShort() & 0xffff;
+        udpAnnounces.increment();
+        SwarmTable.Swarm swarm = announce(source.getAddress(), peerPort, new String(hash, StandardCharsets.ISO_8859_1),
+                left == 0 || event == UDP_EVENT_COMPLETED, event == UDP_EVENT_STOPPED, numWant < 0 ? DEFAULT_NUMWANT : numWant);
+        reply.putInt(UDP_ANNOUNCE).putInt(transactionId).putInt(interval);
+        reply.putInt(swarm == null ? 0 : swarm.getLeechers()).putInt(swarm == null ? 0 : swarm.getSeeds());
+        peers.flip();
+        reply.put(peers);
+        return true;
+    }
+
+    private boolean udpError(int transactionId, String message) {
+        reply.putInt(UDP_ERROR).putInt(transactionId).put(message.getBytes(StandardCharsets.ISO_8859_1));
+        return true;
+    }
+
+    private static long window(int offset) {
+        return System.currentTimeMillis() / CONNECTION_WINDOW + offset;
+    }
+
+    /**
+     * Connection ids are derived from the client address and the time window so no state is kept for them.
+     */
+    private long connectionId(InetSocketAddress source, long window) {
+        long h = secret ^ source.getAddress().hashCode() * 0x9E3779B97F4A7C15L ^ source.getPort() ^ window << 20;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    // swarms
+
+    /**
+     * Register the announce, the peers for the client are left in {@link #peers}.
+     */
+    private SwarmTable.Swarm announce(InetAddress address, int peerPort, String infoHash, boolean seed, boolean stopped,
+            int numWant) {
+        peers.clear();
+        if (!(address instanceof Inet4Address)) {
+            // can't be put into the compact list, the client still gets the peers
+            return table.peers(infoHash, seed, Math.min(numWant, MAX_NUMWANT), peers);
+        }
+        byte[] bytes = address.getAddress();
+        int ip = (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+        return table.announce(infoHash, SwarmTable.endpoint(ip, peerPort), seed, stopped, Math.min(numWant, MAX_NUMWANT),
+                System.currentTimeMillis() + peerTimeout, peers);
+    }
+}
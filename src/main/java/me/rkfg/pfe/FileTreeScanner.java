@@ -0,0 +1,134 @@
+package me.rkfg.pfe;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lists the files of a directory tree in parallel. Every directory is read by its own fork/join task with a single level
+ * {@link Files#walkFileTree} so the sizes come with the directory entries instead of a stat call per file. Symbolic
+ * links are skipped. The result is sorted by path to keep the torrent layout stable.
+ */
+public class FileTreeScanner {
+
+    private ForkJoinPool pool;
+
+    public static class ScannedFile {
+        private Path path;
+        private long size;
+
+        public ScannedFile(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private static final Comparator<ScannedFile> BY_PATH = new Comparator<ScannedFile>() {
+
+        @Override
+        public int compare(ScannedFile o1, ScannedFile o2) {
+            return o1.path.compareTo(o2.path);
+        }
+    };
+
+    private static class DirectoryTask extends RecursiveTask<List<ScannedFile>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private Path directory;
+        private AtomicBoolean stop;
+
+        public DirectoryTask(Path directory, AtomicBoolean stop) {
+            this.directory = directory;
+            this.stop = stop;
+        }
+
+        @Override
+        protected List<ScannedFile> compute() {
+            final List<ScannedFile> result = new ArrayList<>();
+            if (stop.get()) {
+                return result;
+            }
+            final List<DirectoryTask> subtasks = new ArrayList<>();
+            try {
+                Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        // entries of the last level are visited as files, directories included
+                        if (attrs.isDirectory()) {
+                            subtasks.add(new DirectoryTask(file, stop));
+                        } else if (attrs.isRegularFile()) {
+                            result.add(new ScannedFile(file, attrs.size()));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                throw new PFEException("Can't read directory " + directory + ": " + e.getMessage(), e);
+            }
+            for (DirectoryTask subtask : ForkJoinTask.invokeAll(subtasks)) {
+                result.addAll(subtask.join());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param threads
+     *            number of threads reading directories, 0 means one per available processor
+     */
+    public FileTreeScanner(int threads) {
+        pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return all regular files under the directory sorted by path
+     * @throws InterruptedException
+     *             if the calling thread is interrupted, the scan is stopped
+     */
+    public List<ScannedFile> scan(Path directory) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        ForkJoinTask<List<ScannedFile>> task = pool.submit(new DirectoryTask(directory, stop));
+        List<ScannedFile> result;
+        try {
+            result = task.get();
+        } catch (InterruptedException e) {
+            stop.set(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PFEException) {
+                throw (PFEException) e.getCause();
+            }
+            throw new PFEException("Can't scan " + directory + ": " + e.getCause().getMessage(), e.getCause());
+        }
+        Collections.sort(result, BY_PATH);
+        return result;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,210 @@
+package me.rkfg.pfe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk LRU cache of piece hashes. Only pieces lying entirely inside a single file are cached, their hashes don't
+ * depend on the other files of the torrent so they can be reused as long as the file size and modification time stay
+ * the same and the piece grid is aligned the same way relative to the file start.
+ */
+public class HashCache {
+
+    private static final int VERSION = 1;
+    // rough per-entry bookkeeping cost counted against the size limit
+    private static final int ENTRY_OVERHEAD = 128;
+    // smallest possible entry on disk: empty path, piece length, alignment, file size, mtime and hashes length
+    private static final int MIN_ENTRY_LENGTH = 2 + 4 + 8 + 8 + 8 + 4;
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private File file;
+    private long maxSize;
+    private long size;
+    private boolean dirty;
+    private LinkedHashMap<Key, Value> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public HashCache(File file, long maxSize) {
+        this.file = file;
+        this.maxSize = maxSize;
+        load();
+    }
+
+    /**
+     * @param alignment
+     *            offset of the first piece boundary inside the file
+     * @return concatenated hashes of the full pieces starting at the alignment offset or null if the file isn't cached
+     *         or has changed since
+     */
+    public synchronized byte[] get(File file, int pieceLength, long alignment) {
+        Key key = new Key(file.getAbsolutePath(), pieceLength, alignment);
+        Value value = entries.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (value.size != file.length() || value.mtime != file.lastModified()) {
+            remove(key);
+            return null;
+        }
+        return value.hashes;
+    }
+
+    public synchronized void put(File file, long fileSize, long mtime, int pieceLength, long alignment, byte[] hashes) {
+        Key key = new Key(file.getAbsolutePath(), pieceLength, alignment);
+        remove(key);
+        entries.put(key, new Value(fileSize, mtime, hashes));
+        size += cost(key, hashes);
+        dirty = true;
+        evict();
+    }
+
+    /**
+     * Drop the least recently used entries until the cache fits the size limit.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, Value>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<Key, Value> eldest = iterator.next();
+            size -= cost(eldest.getKey(), eldest.getValue().hashes);
+            iterator.remove();
+            dirty = true;
+        }
+    }
+
+    private void remove(Key key) {
+        Value old = entries.remove(key);
+        if (old != null) {
+            size -= cost(key, old.hashes);
+            dirty = true;
+        }
+    }
+
+    private long cost(Key key, byte[] hashes) {
+        return ENTRY_OVERHEAD + key.path.length() * 2 + hashes.length;
+    }
+
+    private void load() {
+        long length = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                log.info("Hash cache {} has an incompatible version, ignoring it.", file);
+                return;
+            }
+            // the lengths are checked against the file size so a corrupt file can't make us allocate huge arrays
+            int count = in.readInt();
+            if (count < 0 || count > length / MIN_ENTRY_LENGTH) {
+                throw new IOException("invalid entry count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                Key key = new Key(in.readUTF(), in.readInt(), in.readLong());
+                long fileSize = in.readLong();
+                long mtime = in.readLong();
+                int hashesLength = in.readInt();
+                if (hashesLength < 0 || hashesLength > length) {
+                    throw new IOException("invalid hashes length " + hashesLength);
+                }
+                byte[] hashes = new byte[hashesLength];
+                in.readFully(hashes);
+                remove(key);
+                entries.put(key, new Value(fileSize, mtime, hashes));
+                size += cost(key, hashes);
+            }
+            dirty = false;
+            // the limit could have been lowered since the cache was saved
+            evict();
+            log.debug("Loaded {} hash cache entries", entries.size());
+        } catch (FileNotFoundException e) {
+            log.debug("Hash cache {} not found, will be created later.", file);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Can't load hash cache {}, ignoring it: {}", file, e.toString());
+            entries.clear();
+            size = 0;
+            dirty = false;
+        }
+    }
+
+    /**
+     * Write the cache to disk if it was modified. The file is replaced atomically so a crash never leaves a truncated
+     * cache behind.
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<Key, Value> entry : entries.entrySet()) {
+                    Key key = entry.getKey();
+                    Value value = entry.getValue();
+                    out.writeUTF(key.path);
+                    out.writeInt(key.pieceLength);
+                    out.writeLong(key.alignment);
+                    out.writeLong(value.size);
+                    out.writeLong(value.mtime);
+                    out.writeInt(value.hashes.length);
+                    out.write(value.hashes);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            log.warn("Can't save hash cache {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static class Key {
+        String path;
+        int pieceLength;
+        long alignment;
+
+        public Key(String path, int pieceLength, long alignment) {
+            this.path = path;
+            this.pieceLength = pieceLength;
+            this.alignment = alignment;
+        }
+
+        @Override
+        public int hashCode() {
+            return (path.hashCode() * 31 + pieceLength) * 31 + (int) (alignment ^ (alignment >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return pieceLength == other.pieceLength && alignment == other.alignment && path.equals(other.path);
+        }
+    }
+
+    private static class Value {
+        long size;
+        long mtime;
+        byte[] hashes;
+
+        public Value(long size, long mtime, byte[] hashes) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hashes = hashes;
+        }
+    }
+}
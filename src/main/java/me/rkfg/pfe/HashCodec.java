@@ -0,0 +1,82 @@
+package me.rkfg.pfe;
+
+import java.util.Arrays;
+
+/**
+ * Conversions between the Base32 hashes used by PFE and the hex form used by libtorrent without going through
+ * intermediate byte arrays and strings.
+ */
+public final class HashCodec {
+
+    private static final char[] BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final byte[] BASE32_VALUES = new byte[128];
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(BASE32_VALUES, (byte) -1);
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < BASE32.length; i++) {
+            BASE32_VALUES[BASE32[i]] = (byte) i;
+            BASE32_VALUES[Character.toLowerCase(BASE32[i])] = (byte) i;
+        }
+        for (int i = 0; i < HEX.length; i++) {
+            HEX_VALUES[HEX[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX[i])] = (byte) i;
+        }
+    }
+
+    private HashCodec() {
+    }
+
+    public static String base32ToHex(String base32) {
+        int len = base32.length();
+        while (len > 0 && base32.charAt(len - 1) == '=') {
+            len--;
+        }
+        char[] result = new char[len * 5 / 8 * 2];
+        int buffer = 0;
+        int bits = 0;
+        int pos = 0;
+        for (int i = 0; i < len && pos < result.length; i++) {
+            buffer = (buffer << 5) | value(BASE32_VALUES, base32.charAt(i), base32);
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                int b = (buffer >>> bits) & 0xff;
+                result[pos++] = HEX[b >>> 4];
+                result[pos++] = HEX[b & 0xf];
+            }
+        }
+        return new String(result);
+    }
+
+    public static String hexToBase32(String hex) {
+        int bytes = hex.length() / 2;
+        char[] result = new char[(bytes * 8 + 4) / 5];
+        int buffer = 0;
+        int bits = 0;
+        int pos = 0;
+        for (int i = 0; i < bytes; i++) {
+            int b = value(HEX_VALUES, hex.charAt(i * 2), hex) << 4 | value(HEX_VALUES, hex.charAt(i * 2 + 1), hex);
+            buffer = (buffer << 8) | b;
+            bits += 8;
+            while (bits >= 5) {
+                bits -= 5;
+                result[pos++] = BASE32[(buffer >>> bits) & 0x1f];
+            }
+        }
+        if (bits > 0) {
+            result[pos++] = BASE32[(buffer << (5 - bits)) & 0x1f];
+        }
+        return new String(result);
+    }
+
+    private static int value(byte[] table, char c, String source) {
+        int v = c < 128 ? table[c] : -1;
+        if (v < 0) {
+            throw new PFEException("Invalid character '" + c + "' in hash " + source);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,352 @@
+package me.rkfg.pfe;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers {@link PFEListener} and {@link PFESchedulerListener} events asynchronously. Every listener has its own
+ * executor and pending event maps keyed by torrent hash so a slow listener only gets the latest state of each torrent
+ * instead of every intermediate batch. The state changes (stopped, queued, demoted, promoted) of a torrent share one
+ * slot so only the latest one is delivered and a lagging listener can't see them out of order. The engine thread never
+ * blocks: events beyond the listener capacity are dropped and counted.
+ */
+public class ListenerDispatcher {
+
+    private static final ListenerQueue[] EMPTY = new ListenerQueue[0];
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final int DEFAULT_CAPACITY = 10000;
+
+    private AtomicReference<ListenerQueue[]> queues = new AtomicReference<>(EMPTY);
+    private volatile int capacity = DEFAULT_CAPACITY;
+    private Metrics.Timer callbackTimer;
+
+    public static class ListenerStats {
+        private AtomicLong delivered = new AtomicLong();
+        private AtomicLong coalesced = new AtomicLong();
+        private AtomicLong dropped = new AtomicLong();
+        private AtomicLong lagging = new AtomicLong();
+
+        /**
+         * @return number of batches passed to the listener
+         */
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        /**
+         * @return number of events replaced by a newer state of the same torrent before delivery
+         */
+        public long getCoalesced() {
+            return coalesced.get();
+        }
+
+        /**
+         * @return number of events dropped because the listener queue was full
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * @return number of times new events arrived while the previous ones were still being delivered
+         */
+        public long getLagging() {
+            return lagging.get();
+        }
+    }
+
+    private enum Event {
+        // delivery order within a batch, a torrent is in at most one of the state change batches
+        PROGRESS(false), STOPPED(false), QUEUED(true), DEMOTED(true), PROMOTED(true);
+
+        // only delivered to the listeners implementing PFESchedulerListener
+        final boolean scheduler;
+
+        Event(boolean scheduler) {
+            this.scheduler = scheduler;
+        }
+    }
+
+    private static class StateChange {
+        Event event;
+        TorrentActivity activity;
+
+        public StateChange(Event event, TorrentActivity activity) {
+            this.event = event;
+            this.activity = activity;
+        }
+    }
+
+    private class ListenerQueue {
+        PFEListener listener;
+        ExecutorService executor;
+        ConcurrentMap<String, TorrentActivity> progress = new ConcurrentHashMap<>();
+        // the latest state change of every torrent
+        ConcurrentMap<String, StateChange> states = new ConcurrentHashMap<>();
+        AtomicBoolean scheduled = new AtomicBoolean();
+        ListenerStats stats = new ListenerStats();
+        Runnable drain = new Runnable() {
+
+            @Override
+            public void run() {
+                scheduled.set(false);
+                Map<Event, List<TorrentActivity>> batches = new EnumMap<>(Event.class);
+                batches.put(Event.PROGRESS, take(progress));
+                for (StateChange change : take(states)) {
+                    List<TorrentActivity> batch = batches.get(change.event);
+                    if (batch == null) {
+                        batch = new ArrayList<>();
+                        batches.put(change.event, batch);
+                    }
+                    batch.add(change.activity);
+                }
+                for (Map.Entry<Event, List<TorrentActivity>> entry : batches.entrySet()) {
+                    Event event = entry.getKey();
+                    List<TorrentActivity> batch = entry.getValue();
+                    if (batch.isEmpty()) {
+                        continue;
+                    }
+                    long start = callbackTimer.start();
+                    try {
+                        deliver(event, batch);
+                        stats.delivered.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        log.error("Listener {} failed", listener, e);
+                    } finally {
+                        callbackTimer.stop(start);
+                    }
+                }
+            }
+        };
+
+        public ListenerQueue(PFEListener listener) {
+            this.listener = listener;
+            this.executor = Executors.newSingleThreadExecutor(threadFactory("PFE listener " + listener.getClass().getSimpleName()));
+        }
+
+        private void deliver(Event event, List<TorrentActivity> batch) {
+            switch (event) {
+            case PROGRESS:
+                listener.torrentProgress(batch);
+                break;
+            case STOPPED:
+                listener.torrentStopped(batch);
+                break;
+            case QUEUED:
+                ((PFESchedulerListener) listener).torrentQueued(batch);
+                break;
+            case DEMOTED:
+                ((PFESchedulerListener) listener).torrentDemoted(batch);
+                break;
+            case PROMOTED:
+                ((PFESchedulerListener) listener).torrentPromoted(batch);
+                break;
+            }
+        }
+
+        public void offer(Event event, Collection<TorrentActivity> activities) {
+            if (event.scheduler && !(listener instanceof PFESchedulerListener)) {
+                return;
+            }
+            for (TorrentActivity activity : activities) {
+                if (event == Event.PROGRESS) {
+                    put(progress, activity.hash, activity);
+                } else {
+                    put(states, activity.hash, new StateChange(event, activity));
+                }
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(drain);
+                } catch (RejectedExecutionException e) {
+                    // the listener has just been removed
+                }
+            } else {
+                stats.lagging.incrementAndGet();
+            }
+        }
+
+        private <T> void put(ConcurrentMap<String, T> pending, String hash, T value) {
+            if (pending.size() >= capacity && !pending.containsKey(hash)) {
+                stats.dropped.incrementAndGet();
+                return;
+            }
+            if (pending.put(hash, value) != null) {
+                stats.coalesced.incrementAndGet();
+            }
+        }
+
+        private <T> List<T> take(ConcurrentMap<String, T> pending) {
+            List<T> result = new ArrayList<>(pending.size());
+            for (Map.Entry<String, T> entry : pending.entrySet()) {
+                // only remove the exact state we deliver, a newer one put concurrently stays for the next run
+                if (pending.remove(entry.getKey(), entry.getValue())) {
+                    result.add(entry.getValue());
+                }
+            }
+            return result;
+        }
+    }
+
+    public ListenerDispatcher(Metrics metrics) {
+        callbackTimer = metrics.timer("pfe_listener_callback_seconds", "Time spent in PFEListener callbacks");
+        metrics.gauge("pfe_listener_pending_events", "Events waiting for delivery to the listeners", new Metrics.GaugeValue() {
+
+            @Override
+            public double get() {
+                long pending = 0;
+                for (ListenerQueue queue : queues.get()) {
+                    pending += queue.progress.size() + queue.states.size();
+                }
+                return pending;
+            }
+        });
+    }
+
+    /**
+     * @param capacity
+     *            maximum number of torrents with undelivered events per listener
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void add(PFEListener listener) {
+        ListenerQueue queue = new ListenerQueue(listener);
+        while (true) {
+            ListenerQueue[] current = queues.get();
+            if (find(current, listener) >= 0) {
+                queue.executor.shutdown();
+                return;
+            }
+            ListenerQueue[] updated = new ListenerQueue[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = queue;
+            if (queues.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    public void remove(PFEListener listener) {
+        while (true) {
+            ListenerQueue[] current = queues.get();
+            int idx = find(current, listener);
+            if (idx < 0) {
+                return;
+            }
+            ListenerQueue[] updated = new ListenerQueue[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, idx);
+            System.arraycopy(current, idx + 1, updated, idx, current.length - idx - 1);
+            if (queues.compareAndSet(current, updated)) {
+                current[idx].executor.shutdown();
+                return;
+            }
+        }
+    }
+
+    private int find(ListenerQueue[] current, PFEListener listener) {
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return delivery statistics of the listener or null if it's not registered
+     */
+    public ListenerStats getStats(PFEListener listener) {
+        ListenerQueue[] current = queues.get();
+        int idx = find(current, listener);
+        return idx < 0 ? null : current[idx].stats;
+    }
+
+    public void torrentProgress(Collection<TorrentActivity> activities) {
+        publish(Event.PROGRESS, activities);
+    }
+
+    public void torrentStopped(Collection<TorrentActivity> activities) {
+        publish(Event.STOPPED, activities);
+    }
+
+    public void torrentQueued(Collection<TorrentActivity> activities) {
+        publish(Event.QUEUED, activities);
+    }
+
+    public void torrentPromoted(Collection<TorrentActivity> activities) {
+        publish(Event.PROMOTED, activities);
+    }
+
+    public void torrentDemoted(Collection<TorrentActivity> activities) {
+        publish(Event.DEMOTED, activities);
+    }
+
+    private void publish(Event event, Collection<TorrentActivity> activities) {
+        ListenerQueue[] current = queues.get();
+        if (current.length == 0) {
+            return;
+        }
+        Collection<TorrentActivity> copies = copy(activities);
+        for (ListenerQueue queue : current) {
+            queue.offer(event, copies);
+        }
+    }
+
+    public void shutdown() {
+        for (ListenerQueue queue : queues.getAndSet(EMPTY)) {
+            queue.executor.shutdown();
+        }
+    }
+
+    /**
+     * Listeners run on other threads so they get snapshots instead of the objects being updated by the engine.
+     */
+    private Collection<TorrentActivity> copy(Collection<TorrentActivity> activities) {
+        List<TorrentActivity> result = new ArrayList<>(activities.size());
+        for (TorrentActivity activity : activities) {
+            result.add(new TorrentActivity(activity));
+        }
+        return result;
+    }
+
+    /**
+     * @return virtual thread factory if the JVM supports them or a daemon platform thread factory otherwise
+     */
+    private static ThreadFactory threadFactory(final String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package me.rkfg.pfe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.codec.DecoderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.TorrentInfo;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.MetadataReceivedAlert;
+
+/**
+ * Bounded local store of torrent metadata. Torrents added by hash later get the metadata from here instead of waiting
+ * for peers to send it. The least recently used files are evicted when the size limit is exceeded, the file
+ * modification time is used as the access time so the order survives restarts.
+ */
+public class MetadataStore implements AlertListener {
+
+    private static final String EXT = ".torrent";
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private File directory;
+    private long maxSize;
+    private long size;
+    // hash => file size, in access order
+    private LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Metadata writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public MetadataStore(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Can't create metadata directory {}", directory);
+        }
+        load();
+    }
+
+    private void load() {
+        File[] list = directory.listFiles();
+        if (list == null) {
+            return;
+        }
+        Arrays.sort(list, new Comparator<File>() {
+
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o1.lastModified(), o2.lastModified());
+            }
+        });
+        for (File file : list) {
+            String name = file.getName();
+            if (name.endsWith(EXT)) {
+                files.put(name.substring(0, name.length() - EXT.length()), file.length());
+                size += file.length();
+            }
+        }
+        // the limit could have been lowered since the files were stored
+        evict(null);
+        log.debug("Metadata store has {} torrents, {} bytes", files.size(), size);
+    }
+
+    @Override
+    public int[] types() {
+        return new int[] { AlertType.METADATA_RECEIVED.getSwig() };
+    }
+
+    @Override
+    public void alert(Alert<?> alert) {
+        if (alert instanceof MetadataReceivedAlert) {
+            TorrentHandle handle = ((MetadataReceivedAlert) alert).handle();
+            TorrentInfo torrentInfo = handle.getTorrentInfo();
+            if (torrentInfo != null) {
+                try {
+                    put(PFECore.getHash(handle), torrentInfo.toEntry().bencode());
+                } catch (DecoderException e) {
+                    log.warn("Can't store metadata of {}: {}", handle.getName(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return cached metadata or null if the torrent isn't in the store. Files that can't be decoded or belong to
+     *         another torrent are deleted.
+     */
+    public TorrentInfo get(String hash) {
+        File file = new File(directory, hash + EXT);
+        synchronized (this) {
+            if (files.get(hash) == null) {
+                return null;
+            }
+        }
+        try {
+            TorrentInfo torrentInfo = TorrentInfo.bdecode(Files.readAllBytes(file.toPath()));
+            String expected = HashCodec.base32ToHex(hash);
+            if (!torrentInfo.getInfoHash().toHex().equalsIgnoreCase(expected)) {
+                log.warn("Metadata {} has info hash {} instead of {}, deleting", file, torrentInfo.getInfoHash().toHex(), expected);
+                discard(hash, file);
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return torrentInfo;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Can't read metadata {}, deleting: {}", file, e.getMessage());
+            discard(hash, file);
+            return null;
+        }
+    }
+
+    private synchronized void discard(String hash, File file) {
+        Long length = files.remove(hash);
+        if (length != null) {
+            size -= length;
+        }
+        file.delete();
+    }
+
+    /**
+     * Store the bencoded torrent, the file is written asynchronously.
+     */
+    public void put(final String hash, final byte[] torrent) {
+        synchronized (this) {
+            if (files.containsKey(hash)) {
+                return;
+            }
+        }
+        writer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                write(hash, torrent);
+            }
+        });
+    }
+
+    private void write(String hash, byte[] torrent) {
+        File file = new File(directory, hash + EXT);
+        File tmp = new File(directory, hash + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(torrent);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Can't save metadata of {}: {}", hash, e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            Long old = files.put(hash, (long) torrent.length);
+            size += torrent.length - (old != null ? old : 0);
+            evict(hash);
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the store fits the size limit.
+     *
+     * @param keep
+     *            hash of the torrent that stays even if it's the eldest, null for none
+     */
+    private synchronized void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            new File(directory, eldest.getKey() + EXT).delete();
+            size -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    public void shutdown() {
+        writer.shutdown();
+    }
+}
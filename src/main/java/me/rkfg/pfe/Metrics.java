@@ -0,0 +1,302 @@
+package me.rkfg.pfe;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the engine metrics. Counters and timers are updated on the hot paths without locks, gauges are computed
+ * only when the metrics are read. The registry is exposed through JMX and the Prometheus text format.
+ */
+public class Metrics {
+
+    private ConcurrentMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    public static abstract class Metric {
+        private String name;
+        private String help;
+
+        protected Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHelp() {
+            return help;
+        }
+
+        /**
+         * Put the current values keyed by the full sample names.
+         */
+        abstract void values(Map<String, Double> result);
+
+        abstract void write(StringBuilder out);
+    }
+
+    public static class Counter extends Metric {
+        private StripedCounter value = new StripedCounter();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        void values(Map<String, Double> result) {
+            result.put(getName(), (double) get());
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            header(out, this, "counter");
+            sample(out, getName(), null, get());
+        }
+    }
+
+    /**
+     * Counts events and sums up their durations, also keeps the longest one.
+     */
+    public static class Timer extends Metric {
+        private StripedCounter count = new StripedCounter();
+        private StripedCounter total = new StripedCounter();
+        private AtomicLong max = new AtomicLong();
+
+        Timer(String name, String help) {
+            super(name, help);
+        }
+
+        /**
+         * @return start time to pass to {@link #stop(long)}
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        public void stop(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            long current;
+            while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getTotalSeconds() {
+            return seconds(total.sum());
+        }
+
+        public double getMaxSeconds() {
+            return seconds(max.get());
+        }
+
+        private static double seconds(long nanos) {
+            return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+        }
+
+        @Override
+        void values(Map<String, Double> result) {
+            result.put(getName() + "_count", (double) getCount());
+            result.put(getName() + "_sum", getTotalSeconds());
+            result.put(getName() + "_max", getMaxSeconds());
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            header(out, this, "summary");
+            sample(out, getName() + "_count", null, getCount());
+            sample(out, getName() + "_sum", null, getTotalSeconds());
+            out.append("# TYPE ").append(getName()).append("_max gauge\n");
+            sample(out, getName() + "_max", null, getMaxSeconds());
+        }
+    }
+
+    public interface GaugeValue {
+        double get();
+    }
+
+    public static class Gauge extends Metric {
+        private GaugeValue value;
+        private String type;
+
+        Gauge(String name, String help, String type, GaugeValue value) {
+            super(name, help);
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        void values(Map<String, Double> result) {
+            result.put(getName(), value.get());
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            header(out, this, type);
+            sample(out, getName(), null, value.get());
+        }
+    }
+
+    public interface FamilyValues {
+        /**
+         * Put the values keyed by the label value.
+         */
+        void collect(Map<String, Double> result);
+    }
+
+    /**
+     * Gauge with a value per label, such as per-torrent rates. Only exported in the Prometheus format as the label set
+     * changes all the time.
+     */
+    public static class Family extends Metric {
+        private String label;
+        private FamilyValues values;
+
+        Family(String name, String help, String label, FamilyValues values) {
+            super(name, help);
+            this.label = label;
+            this.values = values;
+        }
+
+        @Override
+        void values(Map<String, Double> result) {
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            Map<String, Double> samples = new LinkedHashMap<>();
+            values.collect(samples);
+            header(out, this, "gauge");
+            for (Map.Entry<String, Double> entry : samples.entrySet()) {
+                sample(out, getName(), label + "=\"" + entry.getKey() + "\"", entry.getValue());
+            }
+        }
+    }
+
+    public Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    public Timer timer(String name, String help) {
+        return register(new Timer(name, help));
+    }
+
+    public Gauge gauge(String name, String help, GaugeValue value) {
+        return register(new Gauge(name, help, "gauge", value));
+    }
+
+    /**
+     * Gauge reporting a cumulative value maintained elsewhere, like libtorrent session counters.
+     */
+    public Gauge monotonic(String name, String help, GaugeValue value) {
+        return register(new Gauge(name, help, "counter", value));
+    }
+
+    public Family family(String name, String help, String label, FamilyValues values) {
+        return register(new Family(name, help, label, values));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Metric> T register(T metric) {
+        Metric existing = metrics.putIfAbsent(metric.getName(), metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (existing.getClass() != metric.getClass()) {
+            throw new PFEException("Metric " + metric.getName() + " is already registered with another type");
+        }
+        return (T) existing;
+    }
+
+    public Collection<Metric> getMetrics() {
+        return metrics.values();
+    }
+
+    /**
+     * @return scalar values of all metrics keyed by sample name
+     */
+    public Map<String, Double> values() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Metric metric : metrics.values()) {
+            metric.values(result);
+        }
+        return result;
+    }
+
+    /**
+     * @return value of a single sample computing only the metric it belongs to or null if there's no such sample
+     */
+    public Double value(String sample) {
+        Metric metric = metrics.get(sample);
+        if (metric == null) {
+            // timer samples have suffixes
+            int suffix = sample.lastIndexOf('_');
+            if (suffix < 0) {
+                return null;
+            }
+            metric = metrics.get(sample.substring(0, suffix));
+            if (!(metric instanceof Timer)) {
+                return null;
+            }
+        }
+        Map<String, Double> result = new LinkedHashMap<>();
+        metric.values(result);
+        return result.get(sample);
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : metrics.values()) {
+            metric.write(out);
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, Metric metric, String type) {
+        out.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+        out.append("# TYPE ").append(metric.getName()).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(Double.toString(value));
+        }
+        out.append('\n');
+    }
+}
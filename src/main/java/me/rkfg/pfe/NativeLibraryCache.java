@@ -0,0 +1,119 @@
+package me.rkfg.pfe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.frostwire.jlibtorrent.LibTorrent;
+
+/**
+ * Persistent cache of the extracted native library. The library is stored in a directory named after the jlibtorrent
+ * version and the resource content hash, so it's only written once per library build. New copies are written to a
+ * temporary file and atomically renamed so concurrently starting JVMs never see a partially written library.
+ */
+public class NativeLibraryCache {
+
+    private static final String CACHE_PROPERTY = "pfe.native.cache";
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private File directory;
+
+    public NativeLibraryCache() {
+        String dir = System.getProperty(CACHE_PROPERTY);
+        if (dir == null) {
+            dir = new File(new File(System.getProperty("user.home"), ".cache"), "pfe").getPath();
+        }
+        directory = new File(dir);
+    }
+
+    /**
+     * @return path of the cached library, null if the cache can't be used
+     * @throws FileNotFoundException
+     *             if the resource doesn't exist
+     */
+    public Path extract(String resource, String fileName) throws FileNotFoundException {
+        byte[] data;
+        try (InputStream source = PFECore.class.getResourceAsStream(resource)) {
+            if (source == null) {
+                throw new FileNotFoundException("File " + resource + " was not found in classpath.");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[65536];
+            int read;
+            while ((read = source.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+            data = out.toByteArray();
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            log.warn("Can't read library resource {}: {}", resource, e.getMessage());
+            return null;
+        }
+        byte[] hash = sha256(data);
+        String version = LibTorrent.class.getPackage().getImplementationVersion();
+        Path dir = Paths.get(directory.getPath(), (version != null ? version : "unknown") + "-" + Hex.encodeHexString(hash).substring(0, 16));
+        Path target = dir.resolve(fileName);
+        if (isValid(target, hash)) {
+            log.debug("Using cached library {}", target);
+            return target;
+        }
+        Path tmp = null;
+        try {
+            Files.createDirectories(dir);
+            tmp = Files.createTempFile(dir, fileName, ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Library extracted to {}", target);
+            return target;
+        } catch (IOException e) {
+            // another JVM could have put the library in place and be using it already
+            if (isValid(target, hash)) {
+                return target;
+            }
+            log.info("Can't cache library in {}: {}", dir, e.getMessage());
+            return null;
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    log.debug("Can't delete {}", tmp);
+                }
+            }
+        }
+    }
+
+    private boolean isValid(Path target, byte[] hash) {
+        if (!Files.isRegularFile(target)) {
+            return false;
+        }
+        try {
+            return Arrays.equals(sha256(Files.readAllBytes(target)), hash);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new PFEException("SHA-256 is not supported", e);
+        }
+    }
+}
@@ -8,33 +8,33 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Base32;
-import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.frostwire.jlibtorrent.AddTorrentParams;
 import com.frostwire.jlibtorrent.AlertListener;
-import com.frostwire.jlibtorrent.AnnounceEntry;
 import com.frostwire.jlibtorrent.Entry;
 import com.frostwire.jlibtorrent.ErrorCode;
 import com.frostwire.jlibtorrent.LibTorrent;
 import com.frostwire.jlibtorrent.Session;
-import com.frostwire.jlibtorrent.SettingsPack;
 import com.frostwire.jlibtorrent.Sha1Hash;
 import com.frostwire.jlibtorrent.TorrentAlertAdapter;
 import com.frostwire.jlibtorrent.TorrentHandle;
 import com.frostwire.jlibtorrent.TorrentInfo;
-import com.frostwire.jlibtorrent.TorrentStatus;
 import com.frostwire.jlibtorrent.alerts.AlertType;
 import com.frostwire.jlibtorrent.alerts.FileErrorAlert;
 import com.frostwire.jlibtorrent.alerts.TorrentErrorAlert;
@@ -43,22 +43,60 @@ import com.frostwire.jlibtorrent.swig.add_torrent_params;
 import com.frostwire.jlibtorrent.swig.create_torrent;
 import com.frostwire.jlibtorrent.swig.error_code;
 import com.frostwire.jlibtorrent.swig.file_storage;
-import com.frostwire.jlibtorrent.swig.libtorrent;
 import com.frostwire.jlibtorrent.swig.set_piece_hashes_listener;
-import com.frostwire.jlibtorrent.swig.settings_pack.bool_types;
-import com.frostwire.jlibtorrent.swig.settings_pack.string_types;
+import com.frostwire.jlibtorrent.swig.string_vector;
 
 public enum PFECore {
 
     INSTANCE;
 
+    private static final long SHUTDOWN_SAVE_TIMEOUT = 30000;
+
+    private static final long TIMER_STOP_TIMEOUT = 10000;
+
     private Logger log = LoggerFactory.getLogger(getClass());
 
-    private Session session;
+    private SessionShards sessions;
+
+    private Metrics metrics = new Metrics();
+
+    private Metrics.Counter hashedBytes = metrics.counter("pfe_hashed_bytes_total", "Bytes read and hashed by share()");
+
+    private Metrics.Timer hashingTimer = metrics.timer("pfe_hashing_seconds", "Time spent hashing shared files");
+
+    private MetricsMBean metricsMBean = new MetricsMBean(metrics);
+
+    private MetricsHttpServer metricsServer;
+
+    private EmbeddedTracker tracker;
+
+    private SessionStatsCollector sessionStats;
+
+    private TorrentRegistry registry = new TorrentRegistry();
+
+    private AlertRouter alertRouter = new AlertRouter(registry, metrics);
+
+    private BulkTorrentOperations bulkOperations;
 
     private SettingsStorage settingsStorage;
 
-    private Set<PFEListener> listeners = new HashSet<PFEListener>();
+    private HashCache hashCache;
+
+    private ResumeDataStore resumeDataStore;
+
+    private MetadataStore metadataStore;
+
+    private ListenerDispatcher listeners = new ListenerDispatcher(metrics);
+
+    private ShareQueue shareQueue;
+
+    private FileTreeScanner fileTreeScanner;
+
+    // periodic tasks working with the sessions, cancelled first on stop
+    private Map<Timer, TimerTask> timers = new LinkedHashMap<>();
+
+    // info hash (hex) => cache flushes shared by the open streams of the torrent
+    private Map<String, CacheFlusher> streams = new HashMap<>();
 
     private PFECore() {
         loadLibrary();
@@ -66,7 +104,31 @@ public enum PFECore {
 
     public void init(SettingsStorage settingsStorage) {
         this.settingsStorage = settingsStorage;
+        listeners.setCapacity(settingsStorage.getListenerQueueSize());
+        if (settingsStorage.getHashCacheSize() > 0) {
+            hashCache = new HashCache(new File(settingsStorage.getHashCacheFile()), settingsStorage.getHashCacheSize());
+        }
+        if (settingsStorage.getMetadataCacheSize() > 0) {
+            metadataStore = new MetadataStore(new File(settingsStorage.getMetadataDirectory()), settingsStorage.getMetadataCacheSize());
+        }
+        fileTreeScanner = new FileTreeScanner(settingsStorage.getScanThreads());
+        shareQueue = new ShareQueue(settingsStorage.getShareJobsPerDevice(), new ShareQueue.Callback() {
+
+            @Override
+            public TorrentHandle share(ShareJob job) throws InterruptedException {
+                return PFECore.this.share(job);
+            }
+        });
+        if (settingsStorage.getTrackerPort() > 0) {
+            // started before the session so that the first announces succeed
+            tracker = new EmbeddedTracker(settingsStorage.getTrackerInterval(), metrics);
+            tracker.start(settingsStorage.getTrackerInterface(), settingsStorage.getTrackerPort());
+            if (settingsStorage.isTrackerAddToTorrents() && !settingsStorage.isTrackerAnnounced()) {
+                log.warn("tracker_host isn't set, torrents won't announce to the embedded tracker");
+            }
+        }
         initSession();
+        restoreTorrents();
     }
 
     private void loadLibrary() {
@@ -104,6 +166,20 @@ public enum PFECore {
         String fileName = fileNameFull.substring(0, dotIndex);
         String extension = fileNameFull.substring(dotIndex);
 
+        Path target;
+        try {
+            target = new NativeLibraryCache().extract(path, fileNameFull);
+        } catch (FileNotFoundException e) {
+            throw new PFEException(e.getMessage());
+        }
+        if (target == null) {
+            target = extractToTemp(path, inputPath, fileName, extension);
+        }
+        System.setProperty("jlibtorrent.jni.path", target.toString());
+        log.debug("Using libtorrent version: {}", LibTorrent.version());
+    }
+
+    private Path extractToTemp(String path, Path inputPath, String fileName, String extension) {
         Path target;
         try {
             target = Files.createTempFile(fileName, extension);
@@ -121,136 +197,240 @@ public enum PFECore {
         } catch (IOException e) {
             throw new PFEException("Can't open library resource " + inputPath);
         }
-        System.setProperty("jlibtorrent.jni.path", target.toString());
-        log.debug("Using libtorrent version: {}", LibTorrent.version());
+        return target;
     }
 
     private void initSession() {
         log.info("Trackers: {}", settingsStorage.getTrackers());
-        SettingsPack settingsPack = new SettingsPack();
-        settingsPack.setBoolean(bool_types.enable_dht.swigValue(), settingsStorage.isDht());
-        settingsPack.setBoolean(bool_types.enable_outgoing_utp.swigValue(), false);
-        settingsPack.setBoolean(bool_types.enable_incoming_utp.swigValue(), false);
-        settingsPack.setString(string_types.peer_fingerprint.swigValue(), "-PF1000-");
-        session = new Session(settingsPack, true);
-        // stats don't get sent after a minute of torrent inactivity or so, we should manually check them to handle timeouts
-        Timer torrentProgressTimer = new Timer("Progress checker", true);
-        torrentProgressTimer.schedule(new TimerTask() {
-
-            // torrent_handle.id => activity data
-            Map<Long, TorrentActivity> activities = new HashMap<>();
+        log.info("Performance profile: {}, overrides: {}", settingsStorage.getPerformanceProfile(),
+                settingsStorage.getSessionOverrides());
+        sessions = new SessionShards(settingsStorage);
+        log.info("Session shards: {}", sessions.size());
+        // alerts of all the sessions go through the same router, the listeners don't care about shards
+        sessions.addListener(alertRouter);
+        alertRouter.addListener(registry);
+        bulkOperations = new BulkTorrentOperations(sessions, settingsStorage.getAddTimeout(), new BulkTorrentOperations.Callback() {
 
             @Override
-            public void run() {
-                Set<TorrentActivity> changed = new HashSet<>();
-                Set<TorrentActivity> stopped = new HashSet<>();
-                for (TorrentHandle torrentHandle : session.getTorrents()) {
-                    TorrentStatus status = torrentHandle.getStatus();
-                    if (status.isPaused()) {
-                        // paused torrents are skipped entirely
-                        continue;
-                    }
-                    TorrentActivity activity = getActivity(torrentHandle);
-                    int p = (int) (status.getProgress() * 100);
-                    TorrentInfo torrentInfo = torrentHandle.getTorrentInfo();
-                    if (torrentInfo != null && activity.size == 0) {
-                        activity.size = torrentInfo.getTotalSize();
-                        changed.add(activity);
-                    }
-                    activity.peers = status.getNumPeers() - status.getNumSeeds();
-                    if (p != activity.progress) {
-                        // percentage changed
-                        if (activity.name == null) {
-                            activity.name = torrentHandle.getName();
-                        }
-                        activity.progress = p;
-                        log.info("Progress: {} for torrent {}", p, activity.name);
-                        changed.add(activity);
-                    }
-                    // handle seeding torrents
-                    if (status.isFinished()) {
-                        if (!activity.complete) {
-                            // prevent the possible case when percent doesn't change but status changes
-                            changed.add(activity);
-                            activity.complete = true;
-                        }
-                        long transferred = status.getTotalPayloadUpload();
-                        if (transferred > activity.upload) {
-                            // any useful data was uploaded
-                            activity.upload = transferred;
-                            activity.timestamp = System.nanoTime();
-                            long totalSize = torrentInfo.getTotalSize();
-                            if (torrentInfo != null) {
-                                activity.seedPercent = (int) (transferred * 100 / totalSize);
-                            }
-                            int seedRatio = settingsStorage.getSeedRatio();
-                            if (seedRatio > 0 && transferred > totalSize * seedRatio) {
-                                log.info("Seeding '{}' complete after reaching {} ratio.", torrentInfo.getName(),
-                                        Math.round(transferred * 100 / totalSize) / 100.0);
-                                stopped.add(activity);
-                                torrentHandle.pause();
-                            } else {
-                                changed.add(activity);
-                                activity.uploading = true;
-                            }
-                        } else {
-                            // nothing changed, check timeout
-                            long seedingTimeout = settingsStorage.getSeedingTimeout();
-                            log.debug("Last timestamp: {} now: {} timeout: {}", activity.timestamp, System.nanoTime(), seedingTimeout);
-                            if (seedingTimeout > 0 && System.nanoTime() - activity.timestamp > seedingTimeout) {
-                                log.warn("Seeding '{}' timeout.", torrentInfo.getName());
-                                stopped.add(activity);
-                                torrentHandle.pause();
-                            } else {
-                                if (activity.uploading) {
-                                    activity.uploading = false;
-                                    changed.add(activity);
-                                }
-                            }
-                        }
-                    } else {
-                        activity.timestamp = System.nanoTime();
-                    }
-                    if (changed.size() > 0) {
-                        for (PFEListener pfeListener : listeners) {
-                            pfeListener.torrentProgress(changed);
+            public TorrentHandle find(String base32hash) {
+                return findTorrent(base32hash);
+            }
+
+            @Override
+            public AddTorrentParams createParams(String base32hash, String savePath) {
+                return createAddParams(base32hash, savePath);
+            }
+
+            @Override
+            public void added(TorrentHandle handle, String base32hash, String savePath) {
+                torrentAdded(handle, base32hash, savePath);
+            }
+
+            @Override
+            public void removing(TorrentHandle handle) {
+                forgetTorrent(handle);
+            }
+        });
+        alertRouter.addListener(bulkOperations);
+        if (metadataStore != null) {
+            alertRouter.addListener(metadataStore);
+        }
+        // stats are only posted for the torrents that changed, the tracker checks the seeding timeouts of the rest
+        ProgressTracker progressTracker = new ProgressTracker(sessions, registry, settingsStorage, listeners, metrics);
+        alertRouter.addListener(progressTracker);
+        schedule("Progress checker", progressTracker, 1000, 1000);
+        long peerCheckInterval = settingsStorage.getPeerCheckInterval();
+        if (peerCheckInterval > 0) {
+            schedule("Peer monitor", new SlowPeerMonitor(sessions, registry, settingsStorage, metrics), peerCheckInterval,
+                    peerCheckInterval);
+        }
+        initMetrics();
+        long settingsInterval = settingsStorage.getSettingsCheckInterval();
+        if (settingsInterval > 0) {
+            schedule("Settings watcher", new TimerTask() {
+
+                @Override
+                public void run() {
+                    try {
+                        if (settingsStorage.reload()) {
+                            applySettings();
                         }
+                    } catch (RuntimeException e) {
+                        log.warn("Can't apply the new settings: {}", e.getMessage());
                     }
-                    if (stopped.size() > 0) {
-                        for (PFEListener pfeListener : listeners) {
-                            pfeListener.torrentStopped(stopped);
-                        }
+                }
+            }, settingsInterval, settingsInterval);
+        }
+    }
+
+    private void schedule(String name, TimerTask task, long delay, long period) {
+        Timer timer = new Timer(name, true);
+        timer.schedule(task, delay, period);
+        timers.put(timer, task);
+    }
+
+    /**
+     * Cancel the periodic tasks and wait for the ones running right now to finish.
+     */
+    private void stopTimers() {
+        List<CountDownLatch> barriers = new ArrayList<>();
+        for (Map.Entry<Timer, TimerTask> timer : timers.entrySet()) {
+            timer.getValue().cancel();
+            final CountDownLatch barrier = new CountDownLatch(1);
+            try {
+                // a timer runs its tasks one by one so this one runs after the task in progress
+                timer.getKey().schedule(new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        barrier.countDown();
                     }
+                }, 0);
+                barriers.add(barrier);
+            } catch (IllegalStateException e) {
+                // the timer thread is already dead
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMER_STOP_TIMEOUT);
+        try {
+            for (CountDownLatch barrier : barriers) {
+                if (!barrier.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    log.warn("Periodic tasks didn't finish in time");
+                    break;
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Timer timer : timers.keySet()) {
+            timer.cancel();
+        }
+        timers.clear();
+    }
 
-            private TorrentActivity getActivity(TorrentHandle torrentHandle) {
-                long id = torrentHandle.getSwig().id();
-                TorrentActivity activity = activities.get(id);
-                if (activity == null) {
-                    try {
-                        activity = new TorrentActivity(torrentHandle);
-                        activities.put(id, activity);
-                    } catch (DecoderException e) {
-                        e.printStackTrace();
-                    }
+    /**
+     * Apply the current settings to the running sessions, called automatically when the ini file changes.
+     */
+    public void applySettings() {
+        log.info("Applying settings, performance profile: {}, overrides: {}", settingsStorage.getPerformanceProfile(),
+                settingsStorage.getSessionOverrides());
+        sessions.applySettings(settingsStorage);
+    }
+
+    private void initMetrics() {
+        sessionStats = new SessionStatsCollector(sessions, metrics);
+        long interval = settingsStorage.getMetricsInterval();
+        if (interval > 0) {
+            schedule("Metrics collector", new TimerTask() {
+
+                @Override
+                public void run() {
+                    sessionStats.request();
                 }
-                return activity;
+            }, interval, interval);
+        }
+        if (settingsStorage.isMetricsJmx()) {
+            metricsMBean.register();
+        }
+        if (settingsStorage.getMetricsPort() > 0) {
+            metricsServer = new MetricsHttpServer(metrics);
+            metricsServer.start(settingsStorage.getMetricsPort());
+        }
+    }
+
+    /**
+     * @return the engine metrics, also available through JMX and the Prometheus endpoint if enabled
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private void restoreTorrents() {
+        resumeDataStore = new ResumeDataStore(new File(settingsStorage.getStateDirectory()), settingsStorage.getResumeSaveBatch());
+        alertRouter.addListener(resumeDataStore);
+        List<ResumeDataStore.Resumable> resumables = resumeDataStore.load();
+        for (ResumeDataStore.Resumable resumable : resumables) {
+            try {
+                if (resumable.torrentFile != null) {
+                    Session session = sessions.get(HashCodec.base32ToHex(resumable.hash));
+                    session.asyncAddTorrent(new TorrentInfo(resumable.torrentFile), new File(resumable.savePath), null,
+                            resumable.resumeFile);
+                } else {
+                    addTorrent(resumable.hash, resumable.savePath);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Can't restore torrent {}: {}", resumable.hash, e.getMessage());
             }
-        }, 1000, 1000);
+        }
+        log.info("Restored {} torrents", resumables.size());
+        long interval = settingsStorage.getResumeSaveInterval();
+        schedule("Resume data saver", new TimerTask() {
+
+            @Override
+            public void run() {
+                resumeDataStore.saveChanged(sessions.getTorrents());
+            }
+        }, interval, interval);
     }
 
     public static Sha1Hash base32ToSha1(String base32hash) {
-        char[] hash = Hex.encodeHex(new Base32().decode(base32hash));
-        return new Sha1Hash(String.valueOf(hash));
+        TorrentRegistry.Entry entry = INSTANCE.registry.getByBase32(base32hash);
+        if (entry != null) {
+            return entry.getSha1();
+        }
+        return new Sha1Hash(HashCodec.base32ToHex(base32hash));
     }
 
     public TorrentHandle addTorrent(String base32hash, String saveToPath) {
+        AddTorrentParams torrentParams = createAddParams(base32hash, saveToPath);
+        final TorrentHandle handle = sessions.get(HashCodec.base32ToHex(base32hash)).addTorrent(torrentParams,
+                new ErrorCode(new error_code()));
+        torrentAdded(handle, base32hash, saveToPath);
+        return handle;
+    }
+
+    /**
+     * Add torrents asynchronously, the caller isn't blocked.
+     *
+     * @param maxInFlight
+     *            maximum number of adds submitted to libtorrent but not yet confirmed
+     * @return futures completed when the torrents are added, in the order of the hashes
+     */
+    public Map<String, Future<TorrentHandle>> addTorrents(Collection<String> base32Hashes, String savePath, int maxInFlight) {
+        return bulkOperations.addAll(base32Hashes, savePath, maxInFlight);
+    }
+
+    public Map<String, Future<TorrentHandle>> addTorrents(Collection<String> base32Hashes, String savePath) {
+        return addTorrents(base32Hashes, savePath, settingsStorage.getMaxAddsInFlight());
+    }
+
+    /**
+     * Remove torrents asynchronously, unknown hashes are completed immediately.
+     *
+     * @return futures completed when libtorrent confirms the removal, in the order of the hashes
+     */
+    public Map<String, Future<Void>> removeTorrents(Collection<String> base32Hashes) {
+        return bulkOperations.removeAll(base32Hashes);
+    }
+
+    private AddTorrentParams createAddParams(String base32hash, String saveToPath) {
         AddTorrentParams torrentParams = AddTorrentParams.createInstance();
         torrentParams.infoHash(base32ToSha1(base32hash));
+        if (metadataStore != null) {
+            TorrentInfo torrentInfo = metadataStore.get(base32hash);
+            if (torrentInfo != null) {
+                log.debug("Using cached metadata for {}", base32hash);
+                torrentParams.torrentInfo(torrentInfo);
+            }
+        }
         torrentParams.savePath(saveToPath);
-        final TorrentHandle handle = session.addTorrent(torrentParams, new ErrorCode(new error_code()));
-        setTrackers(handle);
+        setTrackers(torrentParams);
+        return torrentParams;
+    }
+
+    private void torrentAdded(TorrentHandle handle, String base32hash, String saveToPath) {
+        registry.register(handle);
+        resumeDataStore.saveMagnet(base32hash, saveToPath);
         TorrentAlertAdapter listener = new TorrentAlertAdapter(handle) {
 
             @Override
@@ -274,8 +454,7 @@ public enum PFECore {
             }
 
         };
-        addListener(listener);
-        return handle;
+        addTorrentListener(handle, listener);
     }
 
     private enum TorrentType {
@@ -283,7 +462,7 @@ public enum PFECore {
     }
 
     /**
-     * Share files and/or directories
+     * Share files and/or directories, waits until the torrent is created.
      * 
      * @param listener
      *            the listener will be called with hash progress in percents
@@ -292,9 +471,37 @@ public enum PFECore {
      * @return handle of the created torrent, call {@link TorrentHandle#resume()} to start it.
      */
     public TorrentHandle share(final set_piece_hashes_listener listener, String... paths) {
+        ShareJob job = shareAsync(listener, paths);
+        try {
+            return job.getFuture().get();
+        } catch (InterruptedException e) {
+            job.cancel();
+            Thread.currentThread().interrupt();
+            throw new PFEException("Sharing interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PFEException) {
+                throw (PFEException) e.getCause();
+            }
+            throw new PFEException("Sharing failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Queue files and/or directories for sharing. Jobs on the same device run one after another (see
+     * share_jobs_per_device setting), the listener is called on the job thread.
+     * 
+     * @return job to track or cancel, its future is completed with the handle of the created torrent
+     */
+    public ShareJob shareAsync(set_piece_hashes_listener listener, String... paths) {
+        return shareQueue.submit(listener, paths);
+    }
+
+    private TorrentHandle share(final ShareJob job) throws InterruptedException {
+        job.setState(ShareJob.State.SCANNING);
         file_storage fs = new file_storage();
         String rootPath = null;
         TorrentType type = null;
+        List<String> paths = job.getPaths();
         for (String path : paths) {
             File file = new File(path).getAbsoluteFile();
             if (!file.exists()) {
@@ -306,13 +513,25 @@ public enum PFECore {
             }
             if (file.isDirectory()) {
                 type = TorrentType.ONEDIR;
-                if (paths.length > 1) {
-                    throw new PFEException("Only select one directory, you've selected " + paths.length);
+                if (paths.size() > 1) {
+                    throw new PFEException("Only select one directory, you've selected " + paths.size());
                 }
                 rootPath = file.getParent();
-                libtorrent.add_files(fs, file.getAbsolutePath());
+                Path base = file.toPath().getParent();
+                for (FileTreeScanner.ScannedFile scanned : fileTreeScanner.scan(file.toPath())) {
+                    fs.add_file(base.relativize(scanned.getPath()).toString(), scanned.getSize());
+                }
+                if (fs.num_files() == 0) {
+                    throw new PFEException("Directory " + file.getAbsolutePath() + " has no files.");
+                }
             } else {
-                if (paths.length > 1) {
+                long size;
+                try {
+                    size = Files.size(file.toPath());
+                } catch (IOException e) {
+                    throw new PFEException("Can't get size of " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+                }
+                if (paths.size() > 1) {
                     type = TorrentType.MULTIFILE;
                     String newRootPath = file.getParentFile().getParent();
                     if (rootPath != null && !rootPath.equals(newRootPath)) {
@@ -321,14 +540,15 @@ public enum PFECore {
                     rootPath = newRootPath;
                     String multiTorrentPath = new File(file.getParentFile().getName(), file.getName()).getPath();
                     log.debug("Mapping: {} => {}", file.getAbsolutePath(), multiTorrentPath);
-                    fs.add_file(multiTorrentPath, file.length());
+                    fs.add_file(multiTorrentPath, size);
                 } else {
                     rootPath = file.getParent();
-                    fs.add_file(file.getName(), file.length());
+                    fs.add_file(file.getName(), size);
                 }
             }
         }
         final create_torrent ct = new create_torrent(fs);
+        final set_piece_hashes_listener listener = job.getListener();
         set_piece_hashes_listener hashListener = new set_piece_hashes_listener() {
 
             int lastPercent = 0;
@@ -339,17 +559,20 @@ public enum PFECore {
                 if (p > lastPercent) {
                     log.info("Hashed {}%", p);
                     lastPercent = p;
+                    job.setProgress(p);
                     if (listener != null) {
                         listener.progress(p);
                     }
                 }
             }
         };
-        error_code ec = new error_code();
         log.debug("Root path: {}", rootPath);
-        libtorrent.set_piece_hashes_ex(UUID.randomUUID().toString(), ct, rootPath, ec, hashListener);
-        if (ec.value() != 0) {
-            throw new IllegalStateException(ec.message());
+        job.setState(ShareJob.State.HASHING);
+        long hashingStart = hashingTimer.start();
+        hashedBytes.add(new PieceHasher(settingsStorage.getHashingThreads(), hashCache).hash(ct, fs, rootPath, hashListener));
+        hashingTimer.stop(hashingStart);
+        if (job.getFuture().isCancelled()) {
+            throw new InterruptedException();
         }
         Entry e = new Entry(ct.generate());
         TorrentInfo torrentInfo = TorrentInfo.bdecode(e.bencode());
@@ -357,11 +580,18 @@ public enum PFECore {
         addTorrentParams.getSwig().setFlags(add_torrent_params.flags_t.flag_seed_mode.swigValue());
         addTorrentParams.torrentInfo(torrentInfo);
         addTorrentParams.savePath(rootPath);
-        final TorrentHandle handle = session.addTorrent(addTorrentParams, new ErrorCode(new error_code()));
-        setTrackers(handle);
+        setTrackers(addTorrentParams);
+        final TorrentHandle handle = sessions.get(torrentInfo.getInfoHash().toHex()).addTorrent(addTorrentParams,
+                new ErrorCode(new error_code()));
+        registry.register(handle);
+        resumeDataStore.save(handle);
         log.info("Seeding {}", handle.getTorrentInfo().getName());
         try {
-            log.info("Hash: {}", getHash(handle));
+            String hash = getHash(handle);
+            log.info("Hash: {}", hash);
+            if (metadataStore != null) {
+                metadataStore.put(hash, e.bencode());
+            }
         } catch (DecoderException e1) {
             e1.printStackTrace();
         }
@@ -369,21 +599,121 @@ public enum PFECore {
     }
 
     public static String getHash(TorrentHandle handle) throws DecoderException {
-        return new Base32().encodeAsString(Hex.decodeHex(handle.getInfoHash().toHex().toCharArray()));
+        TorrentRegistry.Entry entry = INSTANCE.registry.get(handle.getSwig().id());
+        if (entry != null) {
+            return entry.getBase32();
+        }
+        return HashCodec.hexToBase32(handle.getInfoHash().toHex());
     }
 
-    private void setTrackers(TorrentHandle th) {
+    /**
+     * Put the trackers into the params so that they're set when the torrent is added.
+     */
+    private void setTrackers(AddTorrentParams params) {
+        string_vector trackers = new string_vector();
+        if (tracker != null && settingsStorage.isTrackerAnnounced()) {
+            for (String url : tracker.getAnnounceUrls(settingsStorage.getTrackerHost())) {
+                trackers.push_back(url);
+            }
+        }
         for (String tracker : settingsStorage.getTrackers()) {
-            th.addTracker(new AnnounceEntry(tracker));
+            trackers.push_back(tracker);
         }
+        params.getSwig().setTrackers(trackers);
     }
 
+    /**
+     * Subscribe to session alerts, the listener gets the alert types it returns from {@link AlertListener#types()}.
+     */
     public void addListener(AlertListener listener) {
-        session.addListener(listener);
+        alertRouter.addListener(listener);
+    }
+
+    public void removeListener(AlertListener listener) {
+        alertRouter.removeListener(listener);
+    }
+
+    /**
+     * Subscribe to alerts of a single torrent, the listener is removed automatically when the torrent is removed.
+     */
+    public void addTorrentListener(TorrentHandle th, AlertListener listener) {
+        alertRouter.addTorrentListener(th, listener);
+    }
+
+    public void removeTorrentListener(TorrentHandle th, AlertListener listener) {
+        alertRouter.removeTorrentListener(th, listener);
+    }
+
+    /**
+     * Open a file of the torrent for reading while it's being downloaded, the torrent is downloaded sequentially until
+     * all its streams are closed. Reads block until the data at the position is available.
+     *
+     * @param fileIndex
+     *            index of the file in the torrent
+     */
+    public TorrentStream openStream(String base32hash, int fileIndex) {
+        TorrentHandle handle = findTorrent(base32hash);
+        if (handle == null || !handle.isValid()) {
+            throw new PFEException("Torrent " + base32hash + " not found");
+        }
+        String hash = registry.register(handle).getHex();
+        TorrentStream stream;
+        synchronized (streams) {
+            CacheFlusher flusher = streams.get(hash);
+            boolean first = flusher == null;
+            if (first) {
+                // the streams turn the sequential download on, remember what to go back to
+                flusher = new CacheFlusher(handle, hash, handle.getStatus().isSequentialDownload());
+            }
+            stream = new TorrentStream(handle, fileIndex, settingsStorage.getStreamReadAhead(), settingsStorage.getStreamDeadline(),
+                    settingsStorage.getStreamTimeout(), flusher, new TorrentStream.CloseListener() {
+
+                        @Override
+                        public void closed(TorrentStream stream) {
+                            streamClosed(stream);
+                        }
+                    });
+            if (first) {
+                streams.put(hash, flusher);
+                alertRouter.addTorrentListener(handle, flusher);
+            }
+            flusher.attach(stream);
+        }
+        alertRouter.addTorrentListener(handle, stream);
+        stream.start();
+        return stream;
+    }
+
+    private void streamClosed(TorrentStream stream) {
+        TorrentHandle handle = stream.getHandle();
+        alertRouter.removeTorrentListener(handle, stream);
+        CacheFlusher flusher = stream.getFlusher();
+        synchronized (streams) {
+            if (!flusher.detach(stream) || streams.get(flusher.getHash()) != flusher) {
+                return;
+            }
+            streams.remove(flusher.getHash());
+        }
+        alertRouter.removeTorrentListener(handle, flusher);
+        if (handle.isValid()) {
+            handle.setSequentialDownload(flusher.isSequential());
+        }
     }
 
     public void removeTorrent(TorrentHandle th) {
-        session.removeTorrent(th);
+        forgetTorrent(th);
+        // the torrent may be gone from the registry already, don't put it back
+        TorrentRegistry.Entry entry = registry.get(th.getSwig().id());
+        String hex = entry != null ? entry.getHex() : th.getInfoHash().toHex();
+        sessions.get(hex).removeTorrent(th);
+    }
+
+    private void forgetTorrent(TorrentHandle th) {
+        try {
+            resumeDataStore.remove(getHash(th));
+        } catch (DecoderException e) {
+            e.printStackTrace();
+        }
     }
 
     public void addPFEListener(PFEListener listener) {
@@ -394,11 +724,70 @@ public enum PFECore {
         listeners.remove(listener);
     }
 
+    /**
+     * @return event delivery statistics of the listener or null if it's not registered
+     */
+    public ListenerDispatcher.ListenerStats getPFEListenerStats(PFEListener listener) {
+        return listeners.getStats(listener);
+    }
+
     public void stop() {
-        session.abort();
+        stopTimers();
+        sessions.pause();
+        resumeDataStore.saveAll(sessions.getTorrents(), SHUTDOWN_SAVE_TIMEOUT);
+        bulkOperations.shutdown();
+        shareQueue.shutdown();
+        fileTreeScanner.shutdown();
+        if (metadataStore != null) {
+            metadataStore.shutdown();
+        }
+        sessions.abort();
+        listeners.shutdown();
+        metricsMBean.unregister();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (tracker != null) {
+            tracker.stop();
+        }
+    }
+
+    /**
+     * @return status of all torrents as of the last progress tick
+     */
+    public TorrentSnapshot snapshot() {
+        return registry.snapshot(null, -1);
+    }
+
+    /**
+     * @param since
+     *            {@link TorrentSnapshot#getVersion()} of the previous snapshot
+     * @return status of the torrents changed since the previous snapshot and the hashes of the removed ones
+     */
+    public TorrentSnapshot snapshot(long since) {
+        return registry.snapshot(null, since);
+    }
+
+    /**
+     * @param filter
+     *            selects the torrents to include, the changes of the torrents that stop matching aren't reported
+     * @param since
+     *            {@link TorrentSnapshot#getVersion()} of the previous snapshot or -1 for all torrents
+     */
+    public TorrentSnapshot snapshot(TorrentSnapshot.Filter filter, long since) {
+        return registry.snapshot(filter, since);
     }
 
     public TorrentHandle findTorrent(String hash) {
-        return session.findTorrent(base32ToSha1(hash));
+        TorrentRegistry.Entry entry = registry.getByBase32(hash);
+        if (entry != null && entry.getHandle().isValid()) {
+            return entry.getHandle();
+        }
+        Sha1Hash sha1 = base32ToSha1(hash);
+        TorrentHandle handle = sessions.get(sha1.toHex()).findTorrent(sha1);
+        if (handle != null && handle.isValid()) {
+            registry.register(handle);
+        }
+        return handle;
     }
 }
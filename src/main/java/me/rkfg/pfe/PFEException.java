@@ -7,4 +7,8 @@ public class PFEException extends RuntimeException {
         super(string);
     }
 
+    public PFEException(String string, Throwable cause) {
+        super(string, cause);
+    }
+
 }
@@ -0,0 +1,90 @@
+package me.rkfg.pfe;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future completed from the outside, usually from an alert handler.
+ */
+public class PFEFuture<T> implements Future<T> {
+
+    private CountDownLatch done = new CountDownLatch(1);
+    private volatile T result;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+
+    public static <T> PFEFuture<T> completed(T result) {
+        PFEFuture<T> future = new PFEFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * @return true if the future wasn't completed before
+     */
+    public synchronized boolean complete(T result) {
+        if (isDone()) {
+            return false;
+        }
+        this.result = result;
+        done.countDown();
+        return true;
+    }
+
+    public synchronized boolean fail(Throwable error) {
+        if (isDone()) {
+            return false;
+        }
+        this.error = error;
+        done.countDown();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        cancelled = true;
+        done.countDown();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+}
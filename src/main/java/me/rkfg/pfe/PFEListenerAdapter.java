@@ -0,0 +1,29 @@
+package me.rkfg.pfe;
+
+import java.util.Collection;
+
+/**
+ * Empty {@link PFEListener} and {@link PFESchedulerListener} implementation to override only the events of interest.
+ */
+public abstract class PFEListenerAdapter implements PFEListener, PFESchedulerListener {
+
+    @Override
+    public void torrentProgress(Collection<TorrentActivity> torrentActivities) {
+    }
+
+    @Override
+    public void torrentStopped(Collection<TorrentActivity> stopped) {
+    }
+
+    @Override
+    public void torrentQueued(Collection<TorrentActivity> queued) {
+    }
+
+    @Override
+    public void torrentPromoted(Collection<TorrentActivity> promoted) {
+    }
+
+    @Override
+    public void torrentDemoted(Collection<TorrentActivity> demoted) {
+    }
+}
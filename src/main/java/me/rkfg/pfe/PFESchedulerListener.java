@@ -0,0 +1,23 @@
+package me.rkfg.pfe;
+
+import java.util.Collection;
+
+/**
+ * Scheduler events, delivered to the {@link PFEListener} instances that also implement this interface.
+ */
+public interface PFESchedulerListener {
+    /**
+     * New torrents put in the queue because the active limit is reached.
+     */
+    public void torrentQueued(Collection<TorrentActivity> queued);
+
+    /**
+     * Queued torrents started by the scheduler.
+     */
+    public void torrentPromoted(Collection<TorrentActivity> promoted);
+
+    /**
+     * Active torrents paused by the scheduler in favor of the ones with more demand.
+     */
+    public void torrentDemoted(Collection<TorrentActivity> demoted);
+}
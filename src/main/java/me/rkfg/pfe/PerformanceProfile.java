@@ -0,0 +1,106 @@
+package me.rkfg.pfe;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named sets of libtorrent session settings tuned for a particular kind of deployment. The values are libtorrent
+ * setting names as used in settings_pack, any of them can be overridden from the ini file.
+ */
+public enum PerformanceProfile {
+    /**
+     * libtorrent defaults.
+     */
+    DEFAULT,
+    /**
+     * Dedicated machine with plenty of memory and bandwidth serving many peers at once.
+     */
+    SEEDBOX(
+            // 16 KiB blocks, 1 GiB
+            "cache_size", "65536",
+            "aio_threads", "8",
+            "max_queued_disk_bytes", "8388608",
+            "file_pool_size", "512",
+            "connections_limit", "2000",
+            "listen_queue_size", "200",
+            "send_buffer_watermark", "3145728",
+            "send_buffer_low_watermark", "1048576",
+            "send_buffer_watermark_factor", "150",
+            "unchoke_slots_limit", "64",
+            // rate_based_choker
+            "choking_algorithm", "2",
+            // fastest_upload
+            "seed_choking_algorithm", "1",
+            // suggest_read_cache
+            "suggest_mode", "1",
+            "active_seeds", "1000",
+            "active_limit", "2000"),
+    /**
+     * Small ARM boards and similar devices where memory matters more than speed.
+     */
+    LOW_MEMORY(
+            // 16 KiB blocks, 4 MiB
+            "cache_size", "256",
+            "aio_threads", "1",
+            "max_queued_disk_bytes", "262144",
+            "checking_mem_usage", "16",
+            "file_pool_size", "8",
+            "connections_limit", "50",
+            "send_buffer_watermark", "65536",
+            "send_buffer_low_watermark", "16384",
+            "send_buffer_watermark_factor", "50",
+            "unchoke_slots_limit", "4",
+            "max_peerlist_size", "500",
+            "max_paused_peerlist_size", "100",
+            "alert_queue_size", "1000"),
+    /**
+     * Thousands of torrents that are mostly idle, keeps the per-torrent overhead low.
+     */
+    MANY_IDLE(
+            "dont_count_slow_torrents", "true",
+            "auto_manage_interval", "60",
+            // idle torrents aren't counted, the limits only bound the ones actually transferring
+            "active_downloads", "20",
+            "active_seeds", "200",
+            "active_limit", "220",
+            "tick_interval", "1000",
+            "inactivity_timeout", "120",
+            "close_redundant_connections", "true",
+            "connections_limit", "500",
+            "unchoke_slots_limit", "16",
+            "max_peerlist_size", "200",
+            "max_paused_peerlist_size", "20",
+            "file_pool_size", "64",
+            "cache_size", "2048",
+            "cache_expiry", "60",
+            "alert_queue_size", "50000");
+
+    private Map<String, String> settings;
+
+    private PerformanceProfile(String... pairs) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            map.put(pairs[i], pairs[i + 1]);
+        }
+        settings = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @return libtorrent setting name => value
+     */
+    public Map<String, String> getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return the profile with the given name, case and dashes are ignored
+     */
+    public static PerformanceProfile byName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new PFEException("Unknown performance profile " + name);
+        }
+    }
+}
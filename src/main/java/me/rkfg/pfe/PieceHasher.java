@@ -0,0 +1,328 @@
+package me.rkfg.pfe;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.frostwire.jlibtorrent.Sha1Hash;
+import com.frostwire.jlibtorrent.swig.create_torrent;
+import com.frostwire.jlibtorrent.swig.file_storage;
+import com.frostwire.jlibtorrent.swig.set_piece_hashes_listener;
+
+/**
+ * Replacement for {@code libtorrent.set_piece_hashes} that splits the piece range between several worker threads. Every
+ * worker reads the files through memory-mapped windows so pieces spanning file boundaries are hashed without copying.
+ */
+public class PieceHasher {
+
+    // size of a single mapped region, a worker remaps when a piece doesn't fit into the current one
+    private static final long WINDOW_SIZE = 64L << 20;
+    // amount of data a worker grabs at once, keeps reads sequential within a worker
+    private static final long CHUNK_SIZE = 16L << 20;
+    private static final long PROGRESS_INTERVAL = 200;
+    private static final int HASH_SIZE = 20;
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private int threads;
+    private HashCache cache;
+
+    /**
+     * @param threads
+     *            number of worker threads, 0 means one per available processor
+     * @param cache
+     *            cache to take unchanged pieces from and store the new ones to, may be null
+     */
+    public PieceHasher(int threads, HashCache cache) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.cache = cache;
+    }
+
+    /**
+     * Hash all pieces of the torrent and store the hashes in it.
+     *
+     * @param ct
+     *            torrent being created, its file storage should already be populated
+     * @param fs
+     *            file storage the torrent was created from
+     * @param rootPath
+     *            directory the file storage paths are relative to
+     * @param listener
+     *            receives the number of hashed pieces, always called on the caller's thread, may be null
+     * @return number of bytes read from disk, the pieces taken from the cache aren't counted
+     */
+    public long hash(create_torrent ct, file_storage fs, String rootPath, set_piece_hashes_listener listener) {
+        int numPieces = ct.num_pieces();
+        int numFiles = fs.num_files();
+        File[] files = new File[numFiles];
+        long[] offsets = new long[numFiles];
+        long[] ends = new long[numFiles];
+        for (int i = 0; i < numFiles; i++) {
+            files[i] = new File(rootPath, fs.file_path(i));
+            offsets[i] = fs.file_offset(i);
+            ends[i] = offsets[i] + fs.file_size(i);
+        }
+        Layout layout = new Layout(files, offsets, ends, ct.piece_length(), numFiles > 0 ? ends[numFiles - 1] : 0);
+        byte[][] hashes = new byte[numPieces][];
+        long[] mtimes = new long[numFiles];
+        int cached = 0;
+        if (cache != null) {
+            for (int i = 0; i < numFiles; i++) {
+                mtimes[i] = files[i].lastModified();
+                cached += fromCache(layout, i, hashes);
+            }
+            log.debug("{} of {} pieces found in the hash cache", cached, numPieces);
+        }
+        int workers = Math.max(1, Math.min(threads, numPieces));
+        int chunkPieces = (int) Math.max(1, CHUNK_SIZE / layout.pieceLength);
+        AtomicInteger nextPiece = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger(cached);
+        AtomicLong hashedBytes = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+
+            AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Piece hasher " + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        log.debug("Hashing {} pieces using {} threads", numPieces, workers);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(new Worker(layout, hashes, nextPiece, chunkPieces, done, hashedBytes)));
+            }
+            int reported = 0;
+            for (Future<Void> future : futures) {
+                while (true) {
+                    try {
+                        future.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        reported = reportProgress(listener, done, reported);
+                    }
+                }
+            }
+            reportProgress(listener, done, reported);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PFEException("Hashing interrupted.");
+        } catch (ExecutionException e) {
+            throw new PFEException("Hashing failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int i = 0; i < numPieces; i++) {
+            ct.set_hash(i, new Sha1Hash(Hex.encodeHexString(hashes[i])).getSwig());
+        }
+        if (cache != null) {
+            for (int i = 0; i < numFiles; i++) {
+                toCache(layout, i, mtimes[i], hashes);
+            }
+            cache.save();
+        }
+        return hashedBytes.get();
+    }
+
+    /**
+     * @return index of the first piece starting inside the file
+     */
+    private int firstPiece(Layout layout, int file) {
+        return (int) ((layout.offsets[file] + layout.pieceLength - 1) / layout.pieceLength);
+    }
+
+    /**
+     * @return number of full-length pieces lying entirely inside the file
+     */
+    private int fullPieces(Layout layout, int file) {
+        long start = (long) firstPiece(layout, file) * layout.pieceLength;
+        return start < layout.ends[file] ? (int) ((layout.ends[file] - start) / layout.pieceLength) : 0;
+    }
+
+    private int fromCache(Layout layout, int file, byte[][] hashes) {
+        int count = fullPieces(layout, file);
+        if (count == 0) {
+            return 0;
+        }
+        int first = firstPiece(layout, file);
+        long alignment = (long) first * layout.pieceLength - layout.offsets[file];
+        byte[] cached = cache.get(layout.files[file], layout.pieceLength, alignment);
+        if (cached == null || cached.length != count * HASH_SIZE) {
+            return 0;
+        }
+        for (int i = 0; i < count; i++) {
+            hashes[first + i] = Arrays.copyOfRange(cached, i * HASH_SIZE, (i + 1) * HASH_SIZE);
+        }
+        return count;
+    }
+
+    private void toCache(Layout layout, int file, long mtime, byte[][] hashes) {
+        int count = fullPieces(layout, file);
+        if (count == 0) {
+            return;
+        }
+        int first = firstPiece(layout, file);
+        long alignment = (long) first * layout.pieceLength - layout.offsets[file];
+        byte[] result = new byte[count * HASH_SIZE];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(hashes[first + i], 0, result, i * HASH_SIZE, HASH_SIZE);
+        }
+        cache.put(layout.files[file], layout.ends[file] - layout.offsets[file], mtime, layout.pieceLength, alignment, result);
+    }
+
+    private int reportProgress(set_piece_hashes_listener listener, AtomicInteger done, int reported) {
+        int current = done.get();
+        if (listener != null && current > reported) {
+            listener.progress(current);
+        }
+        return current;
+    }
+
+    private static class Layout {
+        File[] files;
+        long[] offsets;
+        long[] ends;
+        int pieceLength;
+        long totalSize;
+
+        public Layout(File[] files, long[] offsets, long[] ends, int pieceLength, long totalSize) {
+            this.files = files;
+            this.offsets = offsets;
+            this.ends = ends;
+            this.pieceLength = pieceLength;
+            this.totalSize = totalSize;
+        }
+
+        /**
+         * @return index of the file containing the torrent offset, empty files are skipped
+         */
+        public int fileAt(long pos) {
+            int lo = 0;
+            int hi = ends.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ends[mid] > pos) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private static class Worker implements Callable<Void> {
+
+        private Layout layout;
+        private byte[][] hashes;
+        private AtomicInteger nextPiece;
+        private int chunkPieces;
+        private AtomicInteger done;
+        private AtomicLong hashedBytes;
+        private MessageDigest digest;
+        private FileChannel channel;
+        private int channelFile = -1;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        public Worker(Layout layout, byte[][] hashes, AtomicInteger nextPiece, int chunkPieces, AtomicInteger done,
+                AtomicLong hashedBytes) {
+            this.layout = layout;
+            this.hashes = hashes;
+            this.nextPiece = nextPiece;
+            this.chunkPieces = chunkPieces;
+            this.done = done;
+            this.hashedBytes = hashedBytes;
+        }
+
+        @Override
+        public Void call() throws IOException, NoSuchAlgorithmException {
+            digest = MessageDigest.getInstance("SHA-1");
+            try {
+                int start;
+                while ((start = nextPiece.getAndAdd(chunkPieces)) < hashes.length) {
+                    int end = Math.min(start + chunkPieces, hashes.length);
+                    for (int piece = start; piece < end; piece++) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return null;
+                        }
+                        if (hashes[piece] != null) {
+                            // taken from the cache
+                            continue;
+                        }
+                        hashes[piece] = hashPiece(piece);
+                        done.incrementAndGet();
+                        hashedBytes.addAndGet(Math.min(layout.pieceLength, layout.totalSize - (long) piece * layout.pieceLength));
+                    }
+                }
+            } finally {
+                closeChannel();
+            }
+            return null;
+        }
+
+        private byte[] hashPiece(int piece) throws IOException {
+            long pos = (long) piece * layout.pieceLength;
+            long end = Math.min(pos + layout.pieceLength, layout.totalSize);
+            while (pos < end) {
+                int file = layout.fileAt(pos);
+                long fileOffset = pos - layout.offsets[file];
+                int len = (int) Math.min(end - pos, layout.ends[file] - pos);
+                update(file, fileOffset, len);
+                pos += len;
+            }
+            return digest.digest();
+        }
+
+        private void update(int file, long fileOffset, int len) throws IOException {
+            if (file != channelFile) {
+                closeChannel();
+                channel = FileChannel.open(layout.files[file].toPath(), StandardOpenOption.READ);
+                channelFile = file;
+            }
+            if (window == null || fileOffset < windowStart || fileOffset + len > windowStart + window.capacity()) {
+                long fileSize = layout.ends[file] - layout.offsets[file];
+                windowStart = fileOffset;
+                window = channel.map(MapMode.READ_ONLY, windowStart, Math.min(Math.max(WINDOW_SIZE, len), fileSize - windowStart));
+            }
+            window.clear();
+            window.position((int) (fileOffset - windowStart));
+            window.limit(window.position() + len);
+            digest.update(window);
+        }
+
+        private void closeChannel() throws IOException {
+            window = null;
+            channelFile = -1;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
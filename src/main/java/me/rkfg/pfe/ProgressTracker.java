@@ -0,0 +1,372 @@
+package me.rkfg.pfe;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.TorrentInfo;
+import com.frostwire.jlibtorrent.TorrentStatus;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.StateUpdateAlert;
+
+/**
+ * Tracks torrent progress using state update alerts. Every tick asks libtorrent to post the status of the torrents that
+ * changed since the previous request, so the work done per tick doesn't depend on the number of idle torrents. Idle
+ * seeds don't get updates at all, so their seeding deadlines are kept in a queue ordered by the last activity and only the
+ * expired ones are looked at.
+ */
+public class ProgressTracker extends TimerTask implements AlertListener {
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private SessionShards sessions;
+    private SettingsStorage settingsStorage;
+    private ListenerDispatcher dispatcher;
+    private TorrentRegistry registry;
+    private TorrentScheduler scheduler;
+    private Metrics.Timer tickTimer;
+    private ConcurrentLinkedQueue<TorrentStatus> updates = new ConcurrentLinkedQueue<>();
+    // the following are only accessed from the progress thread
+    private PriorityQueue<Deadline> deadlines = new PriorityQueue<>(64, new Comparator<Deadline>() {
+
+        @Override
+        public int compare(Deadline o1, Deadline o2) {
+            return Long.compare(o1.timestamp, o2.timestamp);
+        }
+    });
+    // seeds that uploaded during the previous and the current tick
+    private Set<TorrentRegistry.Entry> uploadedBefore = new HashSet<>();
+    private Set<TorrentRegistry.Entry> uploadedNow = new HashSet<>();
+    // torrents updated, stopped or rescheduled during this tick, only their rows are published
+    private Set<TorrentRegistry.Entry> touched = new HashSet<>();
+
+    /**
+     * Seeding deadline of a torrent, the activity timestamp it was queued with may be outdated by the time it expires.
+     */
+    private static class Deadline {
+        TorrentRegistry.Entry entry;
+        long timestamp;
+
+        public Deadline(TorrentRegistry.Entry entry, long timestamp) {
+            this.entry = entry;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public ProgressTracker(SessionShards sessions, TorrentRegistry registry, SettingsStorage settingsStorage,
+            ListenerDispatcher dispatcher, Metrics metrics) {
+        this.sessions = sessions;
+        this.registry = registry;
+        this.settingsStorage = settingsStorage;
+        this.dispatcher = dispatcher;
+        this.scheduler = new TorrentScheduler(registry, settingsStorage, dispatcher);
+        registerMetrics(metrics);
+    }
+
+    private void registerMetrics(Metrics metrics) {
+        final TorrentRegistry registry = this.registry;
+        tickTimer = metrics.timer("pfe_progress_tick_seconds", "Time spent processing torrent status updates per tick");
+        metrics.gauge("pfe_torrents", "Number of torrents in all sessions", new Metrics.GaugeValue() {
+
+            @Override
+            public double get() {
+                return registry.size();
+            }
+        });
+        metrics.gauge("pfe_upload_payload_rate_bytes", "Upload payload rate of all torrents", new Metrics.GaugeValue() {
+
+            @Override
+            public double get() {
+                final long[] sum = new long[1];
+                registry.forEach(new TorrentRegistry.Visitor() {
+
+                    @Override
+                    public void visit(TorrentRegistry.Entry entry) {
+                        sum[0] += entry.uploadRate;
+                    }
+                });
+                return sum[0];
+            }
+        });
+        metrics.gauge("pfe_download_payload_rate_bytes", "Download payload rate of all torrents", new Metrics.GaugeValue() {
+
+            @Override
+            public double get() {
+                final long[] sum = new long[1];
+                registry.forEach(new TorrentRegistry.Visitor() {
+
+                    @Override
+                    public void visit(TorrentRegistry.Entry entry) {
+                        sum[0] += entry.downloadRate;
+                    }
+                });
+                return sum[0];
+            }
+        });
+        metrics.family("pfe_torrent_upload_payload_rate_bytes", "Upload payload rate of the active torrents", "hash",
+                new Metrics.FamilyValues() {
+
+                    @Override
+                    public void collect(final Map<String, Double> result) {
+                        registry.forEach(new TorrentRegistry.Visitor() {
+
+                            @Override
+                            public void visit(TorrentRegistry.Entry entry) {
+                                if (entry.uploadRate > 0) {
+                                    result.put(entry.getBase32(), (double) entry.uploadRate);
+                                }
+                            }
+                        });
+                    }
+                });
+        metrics.family("pfe_torrent_download_payload_rate_bytes", "Download payload rate of the active torrents", "hash",
+                new Metrics.FamilyValues() {
+
+                    @Override
+                    public void collect(final Map<String, Double> result) {
+                        registry.forEach(new TorrentRegistry.Visitor() {
+
+                            @Override
+                            public void visit(TorrentRegistry.Entry entry) {
+                                if (entry.downloadRate > 0) {
+                                    result.put(entry.getBase32(), (double) entry.downloadRate);
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
+    @Override
+    public int[] types() {
+        return new int[] { AlertType.STATE_UPDATE.getSwig() };
+    }
+
+    @Override
+    public void alert(Alert<?> alert) {
+        if (alert instanceof StateUpdateAlert) {
+            updates.addAll(((StateUpdateAlert) alert).status());
+        }
+    }
+
+    @Override
+    public void run() {
+        long start = tickTimer.start();
+        Set<TorrentActivity> changed = new HashSet<>();
+        Set<TorrentActivity> stopped = new HashSet<>();
+        long now = System.nanoTime();
+        TorrentStatus status;
+        while ((status = updates.poll()) != null) {
+            update(status, now, changed, stopped);
+        }
+        finishTick(now, changed, stopped);
+        sessions.postTorrentUpdates();
+        tickTimer.stop(start);
+    }
+
+    /**
+     * Check the idle torrents, notify the listeners and run the scheduler once the updates are applied.
+     */
+    void finishTick(long now, Set<TorrentActivity> changed, Set<TorrentActivity> stopped) {
+        checkIdle(now, changed, stopped);
+        if (changed.size() > 0) {
+            dispatcher.torrentProgress(changed);
+        }
+        if (stopped.size() > 0) {
+            dispatcher.torrentStopped(stopped);
+        }
+        scheduler.tick(now, touched);
+        publish();
+        touched.clear();
+    }
+
+    /**
+     * Publish the state of the torrents changed during this tick for the snapshots.
+     */
+    private void publish() {
+        registry.publish(touched, new TorrentRegistry.RowBuilder() {
+
+            @Override
+            public TorrentSnapshot.Row build(TorrentRegistry.Entry t, long version) {
+                TorrentActivity activity = t.getActivity();
+                int flags = (t.paused ? TorrentSnapshot.PAUSED : 0) | (t.queued ? TorrentSnapshot.QUEUED : 0)
+                        | (t.stopped ? TorrentSnapshot.STOPPED : 0) | (activity.complete ? TorrentSnapshot.COMPLETE : 0)
+                        | (activity.uploading ? TorrentSnapshot.UPLOADING : 0);
+                TorrentSnapshot.Row row = t.row;
+                if (row != null && row.sameAs(t.progress, t.uploadRate, t.downloadRate, activity.peers, activity.seedPercent,
+                        activity.size, activity.upload, flags)) {
+                    return null;
+                }
+                return new TorrentSnapshot.Row(t.getBase32(), version, t.progress, t.uploadRate, t.downloadRate, activity.peers,
+                        activity.seedPercent, activity.size, activity.upload, flags);
+            }
+        });
+    }
+
+    private void update(TorrentStatus status, long now, Set<TorrentActivity> changed, Set<TorrentActivity> stopped) {
+        TorrentHandle handle = new TorrentHandle(status.getSwig().getHandle());
+        TorrentRegistry.Entry t = registry.get(handle.getSwig().id());
+        if (t == null) {
+            t = registry.register(handle);
+        }
+        t.uploadRate = status.getUploadPayloadRate();
+        t.downloadRate = status.getDownloadPayloadRate();
+        TorrentActivity activity = t.getActivity();
+        if (activity.size == 0 && status.hasMetadata()) {
+            TorrentInfo torrentInfo = handle.getTorrentInfo();
+            if (torrentInfo != null) {
+                activity.size = torrentInfo.getTotalSize();
+                changed.add(activity);
+            }
+        }
+        if (activity.name == null && status.hasMetadata()) {
+            activity.name = handle.getName();
+        }
+        apply(t, status.isPaused(), status.getProgress(), status.getNumPeers() - status.getNumSeeds(), status.isFinished(),
+                status.getTotalPayloadUpload(), now, changed, stopped);
+    }
+
+    /**
+     * Apply a status update to the tracked torrent.
+     */
+    void apply(TorrentRegistry.Entry t, boolean paused, float progress, int peers, boolean finished, long upload, long now,
+            Set<TorrentActivity> changed, Set<TorrentActivity> stopped) {
+        touched.add(t);
+        t.paused = paused;
+        t.progress = progress;
+        if (paused) {
+            // paused torrents are skipped entirely
+            return;
+        }
+        TorrentActivity activity = t.getActivity();
+        activity.peers = peers;
+        int p = (int) (progress * 100);
+        if (p != activity.progress) {
+            // percentage changed
+            activity.progress = p;
+            log.info("Progress: {} for torrent {}", p, activity.name);
+            changed.add(activity);
+        }
+        if (!finished) {
+            activity.timestamp = now;
+            return;
+        }
+        // handle seeding torrents
+        if (!activity.complete) {
+            // prevent the possible case when percent doesn't change but status changes
+            changed.add(activity);
+            activity.complete = true;
+            activity.timestamp = now;
+        }
+        if (upload > activity.upload) {
+            // any useful data was uploaded
+            uploadedNow.add(t);
+            activity.upload = upload;
+            activity.timestamp = now;
+            long totalSize = activity.size;
+            if (totalSize > 0) {
+                activity.seedPercent = (int) (upload * 100 / totalSize);
+            }
+            int seedRatio = settingsStorage.getSeedRatio();
+            if (seedRatio > 0 && totalSize > 0 && upload > totalSize * seedRatio) {
+                log.info("Seeding '{}' complete after reaching {} ratio.", activity.name, Math.round(upload * 100 / totalSize) / 100.0);
+                stop(t, stopped);
+            } else {
+                changed.add(activity);
+                activity.uploading = true;
+            }
+        }
+        if (!t.paused) {
+            queueDeadline(t);
+        }
+    }
+
+    private void queueDeadline(TorrentRegistry.Entry t) {
+        if (!t.deadlineQueued) {
+            t.deadlineQueued = true;
+            deadlines.add(new Deadline(t, t.getActivity().timestamp));
+        }
+    }
+
+    /**
+     * Reset the uploading flag of the seeds that didn't upload anything during this tick and stop the seeds that have
+     * been idle for too long.
+     */
+    void checkIdle(long now, Set<TorrentActivity> changed, Set<TorrentActivity> stopped) {
+        for (TorrentRegistry.Entry t : uploadedBefore) {
+            TorrentActivity activity = t.getActivity();
+            if (!uploadedNow.contains(t) && activity.uploading) {
+                activity.uploading = false;
+                changed.add(activity);
+                touched.add(t);
+            }
+        }
+        Set<TorrentRegistry.Entry> swap = uploadedBefore;
+        uploadedBefore = uploadedNow;
+        uploadedNow = swap;
+        uploadedNow.clear();
+        if (deadlines.size() > registry.size() * 2 + 64) {
+            dropRemoved();
+        }
+        long seedingTimeout = settingsStorage.getSeedingTimeout();
+        if (seedingTimeout <= 0) {
+            return;
+        }
+        Deadline deadline;
+        while ((deadline = deadlines.peek()) != null && now - deadline.timestamp > seedingTimeout) {
+            deadlines.poll();
+            TorrentRegistry.Entry t = deadline.entry;
+            t.deadlineQueued = false;
+            TorrentActivity activity = t.getActivity();
+            if (t.paused || !activity.complete || registry.get(t.getId()) != t) {
+                // queued again by the next update if the torrent is resumed
+                continue;
+            }
+            if (activity.timestamp != deadline.timestamp) {
+                // there was some activity since the deadline was queued
+                queueDeadline(t);
+                continue;
+            }
+            log.warn("Seeding '{}' timeout.", activity.name);
+            stop(t, stopped);
+        }
+    }
+
+    /**
+     * The deadlines of the removed torrents are otherwise only dropped when they expire, which never happens with the
+     * seeding timeout turned off.
+     */
+    private void dropRemoved() {
+        List<Deadline> kept = new ArrayList<>(deadlines.size());
+        for (Deadline deadline : deadlines) {
+            TorrentRegistry.Entry t = deadline.entry;
+            if (registry.get(t.getId()) == t) {
+                kept.add(deadline);
+            } else {
+                t.deadlineQueued = false;
+            }
+        }
+        deadlines.clear();
+        deadlines.addAll(kept);
+    }
+
+    private void stop(TorrentRegistry.Entry t, Set<TorrentActivity> stopped) {
+        stopped.add(t.getActivity());
+        touched.add(t);
+        t.paused = true;
+        t.stopped = true;
+        t.getHandle().pause();
+    }
+}
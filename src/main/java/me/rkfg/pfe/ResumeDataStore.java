@@ -0,0 +1,321 @@
+package me.rkfg.pfe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.DecoderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.Entry;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.TorrentInfo;
+import com.frostwire.jlibtorrent.TorrentStatus;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.SaveResumeDataAlert;
+import com.frostwire.jlibtorrent.alerts.SaveResumeDataFailedAlert;
+import com.frostwire.jlibtorrent.alerts.TorrentRemovedAlert;
+
+/**
+ * Keeps resume data and metadata of the session torrents in the state directory so they can be restored on the next
+ * start without rechecking. Resume data is requested asynchronously from libtorrent and written by a separate thread,
+ * every file is replaced atomically.
+ */
+public class ResumeDataStore implements AlertListener {
+
+    private static final String RESUME_EXT = ".resume";
+    private static final String TORRENT_EXT = ".torrent";
+    // torrents added by hash have no resume data until the metadata arrives, only their save path is kept
+    private static final String MAGNET_EXT = ".magnet";
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private File directory;
+    private int batchSize;
+    private int outstanding;
+    // hashes removed but not yet confirmed by libtorrent, their late resume data is dropped; writer thread only
+    private Set<String> removed = new HashSet<>();
+    private ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Resume data writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public static class Resumable {
+        public String hash;
+        public String savePath;
+        // both are null if the torrent had no metadata when it was saved
+        public File resumeFile;
+        public File torrentFile;
+    }
+
+    public ResumeDataStore(File directory, int batchSize) {
+        this.directory = directory;
+        this.batchSize = batchSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Can't create state directory {}", directory);
+        }
+    }
+
+    @Override
+    public int[] types() {
+        return new int[] { AlertType.SAVE_RESUME_DATA.getSwig(), AlertType.SAVE_RESUME_DATA_FAILED.getSwig(),
+                AlertType.TORRENT_REMOVED.getSwig() };
+    }
+
+    @Override
+    public void alert(Alert<?> alert) {
+        if (alert instanceof SaveResumeDataAlert) {
+            SaveResumeDataAlert saveAlert = (SaveResumeDataAlert) alert;
+            final TorrentHandle handle = saveAlert.handle();
+            final byte[] resumeData = saveAlert.resumeData().bencode();
+            final TorrentInfo torrentInfo = handle.getTorrentInfo();
+            boolean queued = execute("resume data", new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        write(handle, resumeData, torrentInfo);
+                    } finally {
+                        saved();
+                    }
+                }
+            });
+            if (!queued) {
+                saved();
+            }
+        } else if (alert instanceof SaveResumeDataFailedAlert) {
+            SaveResumeDataFailedAlert failedAlert = (SaveResumeDataFailedAlert) alert;
+            log.debug("Resume data of '{}' not saved: {}", failedAlert.torrentName(), failedAlert.error().message());
+            saved();
+        } else if (alert instanceof TorrentRemovedAlert) {
+            final String hash = ((TorrentRemovedAlert) alert).infoHash().toHex();
+            // queued after the writes of the resume data posted before the removal, the handle is invalid from now on
+            execute("removal confirmation", new Runnable() {
+
+                @Override
+                public void run() {
+                    removed.remove(HashCodec.hexToBase32(hash));
+                }
+            });
+        }
+    }
+
+    /**
+     * Queue the task on the writer thread, it's dropped if the store has already been shut down by {@link #saveAll}.
+     *
+     * @return true if the task was queued
+     */
+    private boolean execute(String what, Runnable task) {
+        try {
+            writer.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.debug("The store is shut down, {} is dropped", what);
+            return false;
+        }
+    }
+
+    private void write(TorrentHandle handle, byte[] resumeData, TorrentInfo torrentInfo) {
+        try {
+            String hash = PFECore.getHash(handle);
+            if (removed.contains(hash) || !handle.isValid()) {
+                log.debug("Torrent {} is removed, its resume data is dropped", hash);
+                return;
+            }
+            File torrentFile = new File(directory, hash + TORRENT_EXT);
+            if (torrentInfo != null && !torrentFile.exists()) {
+                writeAtomically(torrentFile, torrentInfo.toEntry().bencode());
+            }
+            writeAtomically(new File(directory, hash + RESUME_EXT), resumeData);
+            new File(directory, hash + MAGNET_EXT).delete();
+        } catch (DecoderException | IOException e) {
+            log.warn("Can't write resume data: {}", e.getMessage());
+        }
+    }
+
+    private void writeAtomically(File file, byte[] data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized void saved() {
+        outstanding--;
+        notifyAll();
+    }
+
+    /**
+     * Request resume data for the torrents that have changed since the last save, at most one batch at a time. The
+     * torrents left out are picked up on the next call as they still need saving.
+     */
+    public void saveChanged(Collection<TorrentHandle> handles) {
+        int requested = 0;
+        for (TorrentHandle handle : handles) {
+            if (requested >= batchSize) {
+                break;
+            }
+            if (!handle.isValid()) {
+                continue;
+            }
+            TorrentStatus status = handle.getStatus();
+            if (status.hasMetadata() && status.needSaveResume()) {
+                save(handle);
+                requested++;
+            }
+        }
+        if (requested > 0) {
+            log.debug("Requested resume data for {} torrents", requested);
+        }
+    }
+
+    /**
+     * Request resume data for all torrents and wait until it's written or the timeout expires.
+     */
+    public void saveAll(Collection<TorrentHandle> handles, long timeoutMs) {
+        for (TorrentHandle handle : handles) {
+            if (handle.isValid() && handle.getStatus().hasMetadata()) {
+                save(handle);
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (this) {
+            try {
+                long left;
+                while (outstanding > 0 && (left = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (outstanding > 0) {
+                log.warn("Resume data of {} torrents wasn't saved in time", outstanding);
+            }
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Request resume data for a single torrent, it's written as soon as libtorrent provides it.
+     */
+    public void save(TorrentHandle handle) {
+        synchronized (this) {
+            outstanding++;
+        }
+        handle.saveResumeData();
+    }
+
+    /**
+     * @return torrents saved by the previous run
+     */
+    public List<Resumable> load() {
+        List<Resumable> result = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(MAGNET_EXT)) {
+                String hash = name.substring(0, name.length() - MAGNET_EXT.length());
+                if (new File(directory, hash + RESUME_EXT).exists()) {
+                    continue;
+                }
+                try {
+                    Resumable resumable = new Resumable();
+                    resumable.hash = hash;
+                    resumable.savePath = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                    result.add(resumable);
+                } catch (IOException e) {
+                    log.warn("Can't read {}: {}", file, e.getMessage());
+                }
+                continue;
+            }
+            if (!name.endsWith(RESUME_EXT)) {
+                continue;
+            }
+            try {
+                Entry resume = Entry.bdecode(Files.readAllBytes(file.toPath()));
+                Entry savePath = resume.dictionary().get("save_path");
+                if (savePath == null) {
+                    log.warn("No save path in {}, skipping", file);
+                    continue;
+                }
+                Resumable resumable = new Resumable();
+                resumable.hash = name.substring(0, name.length() - RESUME_EXT.length());
+                resumable.savePath = savePath.string();
+                resumable.resumeFile = file;
+                File torrentFile = new File(directory, resumable.hash + TORRENT_EXT);
+                if (torrentFile.exists()) {
+                    resumable.torrentFile = torrentFile;
+                }
+                result.add(resumable);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Can't read resume data {}: {}", file, e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remember a torrent added by hash so that it's restored even if its metadata never arrives.
+     */
+    public void saveMagnet(final String hash, final String savePath) {
+        execute("magnet", new Runnable() {
+
+            @Override
+            public void run() {
+                removed.remove(hash);
+                try {
+                    writeAtomically(new File(directory, hash + MAGNET_EXT), savePath.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    log.warn("Can't save torrent {}: {}", hash, e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the saved state of the torrent, the resume data that arrives for it until libtorrent confirms the removal
+     * isn't written.
+     */
+    public void remove(final String hash) {
+        execute("removal", new Runnable() {
+
+            @Override
+            public void run() {
+                removed.add(hash);
+                new File(directory, hash + RESUME_EXT).delete();
+                new File(directory, hash + TORRENT_EXT).delete();
+                new File(directory, hash + MAGNET_EXT).delete();
+            }
+        });
+    }
+}
@@ -0,0 +1,137 @@
+package me.rkfg.pfe;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.frostwire.jlibtorrent.SettingsPack;
+import com.frostwire.jlibtorrent.swig.libtorrent;
+import com.frostwire.jlibtorrent.swig.settings_pack;
+import com.frostwire.jlibtorrent.swig.settings_pack.bool_types;
+import com.frostwire.jlibtorrent.swig.settings_pack.string_types;
+
+/**
+ * Builds the session {@link SettingsPack} from {@link SettingsStorage}: the fixed PFE settings, then the performance
+ * profile and the per-key overrides on top of it. Settings are looked up by their libtorrent names. A pack only changes
+ * the keys it has, so on reload the keys the previous profile and overrides set are first returned to the libtorrent
+ * defaults.
+ */
+public class SessionSettings {
+
+    // settings_pack::type_bases
+    private static final int TYPE_MASK = 0xc000;
+    private static final int STRING_TYPE_BASE = 0x0000;
+    private static final int INT_TYPE_BASE = 0x4000;
+    private static final int BOOL_TYPE_BASE = 0x8000;
+
+    private static Logger log = LoggerFactory.getLogger(SessionSettings.class);
+
+    private SessionSettings() {
+    }
+
+    /**
+     * @param shard
+     *            index of the session, each one listens on its own interface
+     */
+    public static SettingsPack create(SettingsStorage settingsStorage, int shard) {
+        return create(settingsStorage, shard, Collections.<String> emptySet());
+    }
+
+    /**
+     * @param previous
+     *            names of the settings applied by the previous pack, see {@link #names(SettingsStorage)}
+     */
+    public static SettingsPack create(SettingsStorage settingsStorage, int shard, Collection<String> previous) {
+        SettingsPack settingsPack = new SettingsPack();
+        if (!previous.isEmpty()) {
+            reset(settingsPack, previous);
+        }
+        settingsPack.setBoolean(bool_types.enable_dht.swigValue(), settingsStorage.isDht());
+        settingsPack.setBoolean(bool_types.enable_outgoing_utp.swigValue(), false);
+        settingsPack.setBoolean(bool_types.enable_incoming_utp.swigValue(), false);
+        settingsPack.setString(string_types.peer_fingerprint.swigValue(), "-PF1000-");
+        // the embedded tracker only knows the local peers, announce to the configured trackers as well; always set so
+        // that turning the tracker off restores the defaults
+        boolean announceToAll = settingsStorage.isTrackerAnnounced();
+        settingsPack.setBoolean(bool_types.announce_to_all_trackers.swigValue(), announceToAll);
+        settingsPack.setBoolean(bool_types.announce_to_all_tiers.swigValue(), announceToAll);
+        // before the overrides so that lt.listen_interfaces still wins
+        apply(settingsPack, Collections.singletonMap("listen_interfaces", settingsStorage.getListenInterface(shard)));
+        apply(settingsPack, settingsStorage.getPerformanceProfile().getSettings());
+        apply(settingsPack, settingsStorage.getSessionOverrides());
+        return settingsPack;
+    }
+
+    /**
+     * @return names of the settings the profile and the overrides set
+     */
+    public static Set<String> names(SettingsStorage settingsStorage) {
+        Set<String> result = new HashSet<>(settingsStorage.getPerformanceProfile().getSettings().keySet());
+        result.addAll(settingsStorage.getSessionOverrides().keySet());
+        return result;
+    }
+
+    /**
+     * Put the libtorrent default values of the named settings.
+     */
+    private static void reset(SettingsPack settingsPack, Collection<String> names) {
+        settings_pack defaults = libtorrent.default_settings();
+        for (String name : names) {
+            int setting = libtorrent.setting_by_name(name);
+            if (setting < 0) {
+                continue;
+            }
+            switch (setting & TYPE_MASK) {
+            case STRING_TYPE_BASE:
+                settingsPack.setString(setting, defaults.get_str(setting));
+                break;
+            case INT_TYPE_BASE:
+                settingsPack.setInteger(setting, defaults.get_int(setting));
+                break;
+            case BOOL_TYPE_BASE:
+                settingsPack.setBoolean(setting, defaults.get_bool(setting));
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Set the named values, unknown names and malformed values are logged and skipped so a typo in the ini file
+     * doesn't prevent the session from starting.
+     */
+    public static void apply(SettingsPack settingsPack, Map<String, String> settings) {
+        for (Map.Entry<String, String> entry : settings.entrySet()) {
+            String name = entry.getKey();
+            String value = entry.getValue().trim();
+            int setting = libtorrent.setting_by_name(name);
+            if (setting < 0) {
+                log.warn("Unknown libtorrent setting {}", name);
+                continue;
+            }
+            try {
+                switch (setting & TYPE_MASK) {
+                case STRING_TYPE_BASE:
+                    settingsPack.setString(setting, value);
+                    break;
+                case INT_TYPE_BASE:
+                    settingsPack.setInteger(setting, Integer.parseInt(value));
+                    break;
+                case BOOL_TYPE_BASE:
+                    settingsPack.setBoolean(setting, Boolean.parseBoolean(value));
+                    break;
+                default:
+                    log.warn("Setting {} has unsupported type", name);
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value {} for setting {}", value, name);
+            }
+        }
+    }
+}
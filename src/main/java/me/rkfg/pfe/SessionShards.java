@@ -0,0 +1,130 @@
+package me.rkfg.pfe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.Session;
+import com.frostwire.jlibtorrent.TorrentHandle;
+
+/**
+ * A set of libtorrent sessions each running its own network thread. Torrents are assigned to the sessions by
+ * consistent hashing of the info hash so a torrent always lands in the same session and changing the number of shards
+ * only moves a part of the torrents.
+ */
+public class SessionShards {
+
+    // ring points per session, evens out the share of each session
+    private static final int VIRTUAL_NODES = 64;
+    // hex digits of a hash used as the ring position, 60 bits fit a positive long
+    private static final int POSITION_DIGITS = 15;
+
+    private Session[] sessions;
+    // ring position => session index
+    private TreeMap<Long, Integer> ring = new TreeMap<>();
+    // names of the profile and override settings currently applied
+    private Set<String> applied;
+
+    public SessionShards(SettingsStorage settingsStorage) {
+        applied = SessionSettings.names(settingsStorage);
+        int count = Math.max(1, settingsStorage.getSessionShards());
+        sessions = new Session[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = new Session(SessionSettings.create(settingsStorage, i), true);
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(position(DigestUtils.sha1Hex("shard-" + i + "-" + v)), i);
+            }
+        }
+    }
+
+    private static long position(String hex) {
+        return Long.parseLong(hex.substring(0, POSITION_DIGITS), 16);
+    }
+
+    /**
+     * @param hex
+     *            info hash of the torrent in hex
+     * @return the session the torrent belongs to
+     */
+    public Session get(String hex) {
+        if (sessions.length == 1) {
+            return sessions[0];
+        }
+        Map.Entry<Long, Integer> node = ring.ceilingEntry(position(hex));
+        if (node == null) {
+            node = ring.firstEntry();
+        }
+        return sessions[node.getValue()];
+    }
+
+    public int size() {
+        return sessions.length;
+    }
+
+    public List<Session> getSessions() {
+        return Collections.unmodifiableList(Arrays.asList(sessions));
+    }
+
+    /**
+     * @return torrents of all sessions
+     */
+    public List<TorrentHandle> getTorrents() {
+        if (sessions.length == 1) {
+            return sessions[0].getTorrents();
+        }
+        List<TorrentHandle> result = new ArrayList<>();
+        for (Session session : sessions) {
+            result.addAll(session.getTorrents());
+        }
+        return result;
+    }
+
+    public void addListener(AlertListener listener) {
+        for (Session session : sessions) {
+            session.addListener(listener);
+        }
+    }
+
+    public void postTorrentUpdates() {
+        for (Session session : sessions) {
+            session.postTorrentUpdates();
+        }
+    }
+
+    public void postSessionStats() {
+        for (Session session : sessions) {
+            session.postSessionStats();
+        }
+    }
+
+    /**
+     * Apply the current settings, the keys set by the previous profile or overrides but not by the new ones are
+     * returned to the libtorrent defaults.
+     */
+    public synchronized void applySettings(SettingsStorage settingsStorage) {
+        Set<String> names = SessionSettings.names(settingsStorage);
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i].applySettings(SessionSettings.create(settingsStorage, i, applied));
+        }
+        applied = names;
+    }
+
+    public void pause() {
+        for (Session session : sessions) {
+            session.pause();
+        }
+    }
+
+    public void abort() {
+        for (Session session : sessions) {
+            session.abort();
+        }
+    }
+}
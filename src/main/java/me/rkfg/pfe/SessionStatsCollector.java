@@ -0,0 +1,108 @@
+package me.rkfg.pfe;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.Session;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.SessionStatsAlert;
+import com.frostwire.jlibtorrent.swig.libtorrent;
+
+/**
+ * Exports libtorrent session counters as metrics. Every session gets its own listener as the stats alert doesn't tell
+ * which session posted it, the exported values are summed over all sessions.
+ */
+public class SessionStatsCollector {
+
+    private static final String SENT_PAYLOAD = "net.sent_payload_bytes";
+    private static final String RECEIVED_PAYLOAD = "net.recv_payload_bytes";
+    private static final String CACHE_HITS = "disk.num_blocks_cache_hits";
+    private static final String BLOCKS_READ = "disk.num_blocks_read";
+    private static final String[] COUNTERS = { SENT_PAYLOAD, RECEIVED_PAYLOAD, CACHE_HITS, BLOCKS_READ };
+
+    private SessionShards sessions;
+    private int[] indexes = new int[COUNTERS.length];
+    // session * COUNTERS.length + counter => latest value
+    private AtomicLongArray values;
+
+    private class SessionListener implements AlertListener {
+        private int shard;
+
+        public SessionListener(int shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        public int[] types() {
+            return new int[] { AlertType.SESSION_STATS.getSwig() };
+        }
+
+        @Override
+        public void alert(Alert<?> alert) {
+            if (alert instanceof SessionStatsAlert) {
+                SessionStatsAlert statsAlert = (SessionStatsAlert) alert;
+                for (int i = 0; i < COUNTERS.length; i++) {
+                    if (indexes[i] >= 0) {
+                        values.set(shard * COUNTERS.length + i, statsAlert.value(indexes[i]));
+                    }
+                }
+            }
+        }
+    }
+
+    public SessionStatsCollector(SessionShards sessions, Metrics metrics) {
+        this.sessions = sessions;
+        for (int i = 0; i < COUNTERS.length; i++) {
+            indexes[i] = libtorrent.find_metric_idx(COUNTERS[i]);
+        }
+        List<Session> list = sessions.getSessions();
+        values = new AtomicLongArray(list.size() * COUNTERS.length);
+        for (int i = 0; i < list.size(); i++) {
+            list.get(i).addListener(new SessionListener(i));
+        }
+        metrics.monotonic("pfe_session_sent_payload_bytes_total", "Payload bytes sent by all sessions", sum(SENT_PAYLOAD));
+        metrics.monotonic("pfe_session_received_payload_bytes_total", "Payload bytes received by all sessions", sum(RECEIVED_PAYLOAD));
+        metrics.monotonic("pfe_disk_cache_hits_total", "Blocks read from the libtorrent disk cache", sum(CACHE_HITS));
+        metrics.monotonic("pfe_disk_blocks_read_total", "Blocks read from disk", sum(BLOCKS_READ));
+        metrics.gauge("pfe_disk_cache_hit_ratio", "Share of the block reads served from the disk cache", new Metrics.GaugeValue() {
+
+            @Override
+            public double get() {
+                double hits = total(CACHE_HITS);
+                double reads = total(BLOCKS_READ);
+                return hits + reads > 0 ? hits / (hits + reads) : 0;
+            }
+        });
+    }
+
+    private Metrics.GaugeValue sum(final String counter) {
+        return new Metrics.GaugeValue() {
+
+            @Override
+            public double get() {
+                return total(counter);
+            }
+        };
+    }
+
+    private long total(String counter) {
+        int idx = 0;
+        while (!COUNTERS[idx].equals(counter)) {
+            idx++;
+        }
+        long result = 0;
+        for (int i = idx; i < values.length(); i += COUNTERS.length) {
+            result += values.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Ask the sessions for fresh counters, they arrive asynchronously.
+     */
+    public void request() {
+        sessions.postSessionStats();
+    }
+}
@@ -2,45 +2,448 @@ package me.rkfg.pfe;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
 public class SettingsStorage extends AbstractSettingsStorage {
 
-    private Collection<String> trackers;
-    private boolean dht;
-    private int seedRatio;
-    private long seedingTimeout;
-    private boolean seedAfterDownload;
+    // ini keys with this prefix are passed to libtorrent as is
+    private static final String SESSION_PREFIX = "lt.";
+
+    private volatile Values values;
 
     public SettingsStorage(Class<?> jarClass) {
         super(jarClass, System.getProperty("pfe.settings", "pfe_settings.ini"));
-        dht = Boolean.valueOf(properties.getProperty("enable_dht", "false"));
-        seedRatio = Integer.valueOf(properties.getProperty("seeding_ratio", "3"));
-        trackers = Arrays.asList(properties.getProperty("trackers", "").split("\\|"));
-        if (trackers == null) {
+        values = new Values(properties);
+    }
+
+    /**
+     * Immutable result of parsing the ini file, replaced as a whole so the readers never see a half-applied reload.
+     */
+    private final class Values {
+        private final Collection<String> trackers;
+        private final boolean dht;
+        private final int seedRatio;
+        private final long seedingTimeout;
+        private final boolean seedAfterDownload;
+        private final int hashingThreads;
+        private final String hashCacheFile;
+        private final long hashCacheSize;
+        private final String stateDirectory;
+        private final long resumeSaveInterval;
+        private final int resumeSaveBatch;
+        private final int listenerQueueSize;
+        private final int maxAddsInFlight;
+        private final long addTimeout;
+        private final String metadataDirectory;
+        private final long metadataCacheSize;
+        private final PerformanceProfile performanceProfile;
+        private final Map<String, String> sessionOverrides;
+        private final long settingsCheckInterval;
+        private final int maxActiveDownloads;
+        private final int maxActiveSeeds;
+        private final long schedulerInterval;
+        private final long schedulerMinActiveTime;
+        private final long streamReadAhead;
+        private final int streamDeadline;
+        private final long streamTimeout;
+        private final int sessionShards;
+        private final List<String> listenInterfaces;
+        private final int listenPort;
+        private final int shareJobsPerDevice;
+        private final int scanThreads;
+        private final long metricsInterval;
+        private final boolean metricsJmx;
+        private final int metricsPort;
+        private final int trackerPort;
+        private final String trackerInterface;
+        private final String trackerHost;
+        private final int trackerInterval;
+        private final boolean trackerAddToTorrents;
+        private final long peerCheckInterval;
+        private final int peerSlowRatio;
+        private final long peerMaxRequestLatency;
+        private final int peerSlowChecks;
+        private final int peerMinFastPeers;
+        private final boolean peerEvictSlow;
+        private final long peerBanTime;
+
+        public Values(Properties properties) {
+            dht = Boolean.valueOf(properties.getProperty("enable_dht", "false"));
+            seedRatio = Integer.valueOf(properties.getProperty("seeding_ratio", "3"));
+            trackers = Arrays.asList(properties.getProperty("trackers", "").split("\\|"));
+            if (trackers == null) {
+            }
+            seedingTimeout = TimeUnit.SECONDS.toNanos(Integer.valueOf(properties.getProperty("seeding_timeout", "3600")));
+            seedAfterDownload = Boolean.valueOf(properties.getProperty("seed_after_download", "false"));
+            hashingThreads = Integer.valueOf(properties.getProperty("hashing_threads", "0"));
+            hashCacheFile = resolvePath(properties.getProperty("hash_cache_file", "pfe_hashes.cache"));
+            hashCacheSize = Long.valueOf(properties.getProperty("hash_cache_size", "64")) << 20;
+            stateDirectory = resolvePath(properties.getProperty("state_dir", "pfe_state"));
+            resumeSaveInterval = TimeUnit.SECONDS.toMillis(Integer.valueOf(properties.getProperty("resume_save_interval", "300")));
+            resumeSaveBatch = Integer.valueOf(properties.getProperty("resume_save_batch", "200"));
+            listenerQueueSize = Integer.valueOf(properties.getProperty("listener_queue_size", "10000"));
+            maxAddsInFlight = Integer.valueOf(properties.getProperty("max_adds_in_flight", "64"));
+            addTimeout = TimeUnit.SECONDS.toMillis(Integer.valueOf(properties.getProperty("add_timeout", "60")));
+            metadataDirectory = resolvePath(properties.getProperty("metadata_dir", "pfe_metadata"));
+            metadataCacheSize = Long.valueOf(properties.getProperty("metadata_cache_size", "256")) << 20;
+            performanceProfile = PerformanceProfile.byName(properties.getProperty("performance_profile", "default"));
+            Map<String, String> overrides = new LinkedHashMap<>();
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith(SESSION_PREFIX)) {
+                    overrides.put(key.substring(SESSION_PREFIX.length()), properties.getProperty(key));
+                }
+            }
+            sessionOverrides = Collections.unmodifiableMap(overrides);
+            settingsCheckInterval = TimeUnit.SECONDS.toMillis(Integer.valueOf(properties.getProperty("settings_check_interval", "5")));
+            maxActiveDownloads = Integer.valueOf(properties.getProperty("max_active_downloads", "0"));
+            maxActiveSeeds = Integer.valueOf(properties.getProperty("max_active_seeds", "0"));
+            schedulerInterval = TimeUnit.SECONDS.toNanos(Integer.valueOf(properties.getProperty("scheduler_interval", "30")));
+            schedulerMinActiveTime = TimeUnit.SECONDS.toNanos(Integer.valueOf(properties.getProperty("scheduler_min_active_time", "120")));
+            streamReadAhead = Long.valueOf(properties.getProperty("stream_read_ahead", "8")) << 20;
+            streamDeadline = Integer.valueOf(properties.getProperty("stream_deadline", "500"));
+            streamTimeout = TimeUnit.SECONDS.toMillis(Integer.valueOf(properties.getProperty("stream_timeout", "120")));
+            sessionShards = Integer.valueOf(properties.getProperty("session_shards", "1"));
+            String interfaces = properties.getProperty("listen_interfaces", "").trim();
+            listenInterfaces = interfaces.isEmpty() ? Collections.<String> emptyList() : Arrays.asList(interfaces.split("\\|"));
+            listenPort = Integer.valueOf(properties.getProperty("listen_port", "6881"));
+            shareJobsPerDevice = Integer.valueOf(properties.getProperty("share_jobs_per_device", "1"));
+            scanThreads = Integer.valueOf(properties.getProperty("scan_threads", "0"));
+            metricsInterval = TimeUnit.SECONDS.toMillis(Integer.valueOf(properties.getProperty("metrics_interval", "5")));
+            metricsJmx = Boolean.valueOf(properties.getProperty("metrics_jmx", "true"));
+            metricsPort = Integer.valueOf(properties.getProperty("metrics_port", "0"));
+            trackerPort = Integer.valueOf(properties.getProperty("tracker_port", "0"));
+            trackerInterface = properties.getProperty("tracker_interface", "0.0.0.0");
+            trackerHost = properties.getProperty("tracker_host", "").trim();
+            trackerInterval = Integer.valueOf(properties.getProperty("tracker_interval", "60"));
+            trackerAddToTorrents = Boolean.valueOf(properties.getProperty("tracker_add_to_torrents", "true"));
+            peerCheckInterval = TimeUnit.SECONDS.toMillis(Integer.valueOf(properties.getProperty("peer_check_interval", "10")));
+            peerSlowRatio = Integer.valueOf(properties.getProperty("peer_slow_ratio", "25"));
+            peerMaxRequestLatency = TimeUnit.SECONDS.toMillis(Integer.valueOf(properties.getProperty("peer_max_request_latency", "30")));
+            peerSlowChecks = Integer.valueOf(properties.getProperty("peer_slow_checks", "3"));
+            peerMinFastPeers = Integer.valueOf(properties.getProperty("peer_min_fast_peers", "2"));
+            peerEvictSlow = Boolean.valueOf(properties.getProperty("peer_evict_slow", "false"));
+            peerBanTime = TimeUnit.SECONDS.toMillis(Integer.valueOf(properties.getProperty("peer_ban_time", "300")));
+        }
+    }
+
+    /**
+     * Reload the ini file if it changed. Paths and cache sizes are only used on startup, the session settings and
+     * seeding limits take effect immediately.
+     *
+     * @return true if the settings were reloaded
+     */
+    public synchronized boolean reload() {
+        Properties reloaded = reloadProperties();
+        if (reloaded == null) {
+            return false;
         }
-        seedingTimeout = TimeUnit.SECONDS.toNanos(Integer.valueOf(properties.getProperty("seeding_timeout", "3600")));
-        seedAfterDownload = Boolean.valueOf(properties.getProperty("seed_after_download", "false"));
+        // a malformed value throws here and leaves the current settings in place
+        Values parsed = new Values(reloaded);
+        properties = reloaded;
+        values = parsed;
+        return true;
     }
 
     public Collection<String> getTrackers() {
-        return trackers;
+        return values.trackers;
     }
 
     public boolean isDht() {
-        return dht;
+        return values.dht;
     }
 
     public int getSeedRatio() {
-        return seedRatio;
+        return values.seedRatio;
     }
 
     public long getSeedingTimeout() {
-        return seedingTimeout;
+        return values.seedingTimeout;
     }
 
     public boolean isSeedAfterDownload() {
-        return seedAfterDownload;
+        return values.seedAfterDownload;
+    }
+
+    /**
+     * @return number of threads used to hash shared files, 0 means one per available processor
+     */
+    public int getHashingThreads() {
+        return values.hashingThreads;
+    }
+
+    public String getHashCacheFile() {
+        return values.hashCacheFile;
+    }
+
+    /**
+     * @return hash cache size limit in bytes, 0 disables the cache
+     */
+    public long getHashCacheSize() {
+        return values.hashCacheSize;
+    }
+
+    public String getStateDirectory() {
+        return values.stateDirectory;
+    }
+
+    /**
+     * @return interval between the periodic resume data saves in milliseconds
+     */
+    public long getResumeSaveInterval() {
+        return values.resumeSaveInterval;
+    }
+
+    /**
+     * @return maximum number of torrents to request resume data for at once
+     */
+    public int getResumeSaveBatch() {
+        return values.resumeSaveBatch;
+    }
+
+    /**
+     * @return maximum number of torrents with undelivered events per listener
+     */
+    public int getListenerQueueSize() {
+        return values.listenerQueueSize;
+    }
+
+    /**
+     * @return default limit of asynchronous torrent adds waiting for libtorrent confirmation
+     */
+    public int getMaxAddsInFlight() {
+        return values.maxAddsInFlight;
+    }
+
+    /**
+     * @return milliseconds to wait for the confirmation of an asynchronous add before checking the session directly
+     */
+    public long getAddTimeout() {
+        return values.addTimeout;
+    }
+
+    public String getMetadataDirectory() {
+        return values.metadataDirectory;
+    }
+
+    /**
+     * @return metadata store size limit in bytes, 0 disables the store
+     */
+    public long getMetadataCacheSize() {
+        return values.metadataCacheSize;
+    }
+
+    public PerformanceProfile getPerformanceProfile() {
+        return values.performanceProfile;
+    }
+
+    /**
+     * @return libtorrent settings from the ini keys prefixed with "lt.", applied over the profile
+     */
+    public Map<String, String> getSessionOverrides() {
+        return values.sessionOverrides;
+    }
+
+    /**
+     * @return interval between the ini file modification checks in milliseconds, 0 disables the checks
+     */
+    public long getSettingsCheckInterval() {
+        return values.settingsCheckInterval;
+    }
+
+    /**
+     * @return maximum number of downloading torrents running at once, 0 means no limit
+     */
+    public int getMaxActiveDownloads() {
+        return values.maxActiveDownloads;
+    }
+
+    /**
+     * @return maximum number of seeding torrents running at once, 0 means no limit
+     */
+    public int getMaxActiveSeeds() {
+        return values.maxActiveSeeds;
+    }
+
+    /**
+     * @return interval between the active torrent rotations in nanoseconds
+     */
+    public long getSchedulerInterval() {
+        return values.schedulerInterval;
+    }
+
+    /**
+     * @return time in nanoseconds a started torrent stays active regardless of its demand
+     */
+    public long getSchedulerMinActiveTime() {
+        return values.schedulerMinActiveTime;
+    }
+
+    /**
+     * @return bytes after the stream position to download with priority
+     */
+    public long getStreamReadAhead() {
+        return values.streamReadAhead;
     }
 
+    /**
+     * @return deadline in milliseconds for the piece at the stream position
+     */
+    public int getStreamDeadline() {
+        return values.streamDeadline;
+    }
+
+    /**
+     * @return maximum time in milliseconds a stream read waits for data, 0 means forever
+     */
+    public long getStreamTimeout() {
+        return values.streamTimeout;
+    }
+
+    /**
+     * @return number of libtorrent sessions, each one has its own network thread
+     */
+    public int getSessionShards() {
+        return values.sessionShards;
+    }
+
+    /**
+     * @return libtorrent listen interface of the session, from listen_interfaces if set or the listen port plus the
+     *         session index on all interfaces otherwise
+     */
+    public String getListenInterface(int shard) {
+        Values v = values;
+        if (shard < v.listenInterfaces.size()) {
+            return v.listenInterfaces.get(shard).trim();
+        }
+        return "0.0.0.0:" + (v.listenPort + shard);
+    }
+
+    /**
+     * @return number of share jobs hashing files on the same device at once
+     */
+    public int getShareJobsPerDevice() {
+        return values.shareJobsPerDevice;
+    }
+
+    /**
+     * @return number of threads listing shared directories, 0 means one per available processor
+     */
+    public int getScanThreads() {
+        return values.scanThreads;
+    }
+
+    /**
+     * @return interval between the libtorrent session counters updates in milliseconds, 0 disables them
+     */
+    public long getMetricsInterval() {
+        return values.metricsInterval;
+    }
+
+    public boolean isMetricsJmx() {
+        return values.metricsJmx;
+    }
+
+    /**
+     * @return local port of the Prometheus metrics endpoint, 0 disables it
+     */
+    public int getMetricsPort() {
+        return values.metricsPort;
+    }
+
+    /**
+     * @return port of the embedded HTTP and UDP tracker, 0 disables it
+     */
+    public int getTrackerPort() {
+        return values.trackerPort;
+    }
+
+    /**
+     * @return address the embedded tracker listens on
+     */
+    public String getTrackerInterface() {
+        return values.trackerInterface;
+    }
+
+    /**
+     * @return host name or address of this machine put into the embedded tracker announce URLs, empty if not set
+     */
+    public String getTrackerHost() {
+        return values.trackerHost;
+    }
+
+    /**
+     * @return announce interval in seconds the embedded tracker asks the clients for
+     */
+    public int getTrackerInterval() {
+        return values.trackerInterval;
+    }
+
+    /**
+     * @return true if the torrents should announce to the embedded tracker in addition to the configured trackers
+     */
+    public boolean isTrackerAddToTorrents() {
+        return values.trackerAddToTorrents;
+    }
+
+    /**
+     * @return true if the embedded tracker is running and the torrents announce to it, this needs the tracker host
+     */
+    public boolean isTrackerAnnounced() {
+        Values v = values;
+        return v.trackerPort > 0 && v.trackerAddToTorrents && !v.trackerHost.isEmpty();
+    }
+
+    /**
+     * @return interval between the peer checks of the downloading torrents in milliseconds, 0 disables them
+     */
+    public long getPeerCheckInterval() {
+        return values.peerCheckInterval;
+    }
+
+    /**
+     * @return percent of the median peer rate of the torrent below which a peer holding requests is slow
+     */
+    public int getPeerSlowRatio() {
+        return values.peerSlowRatio;
+    }
+
+    /**
+     * @return longest time in milliseconds a peer may need to send its queued requests, 0 disables the check
+     */
+    public long getPeerMaxRequestLatency() {
+        return values.peerMaxRequestLatency;
+    }
+
+    /**
+     * @return number of checks in a row a peer has to be slow to be evicted
+     */
+    public int getPeerSlowChecks() {
+        return values.peerSlowChecks;
+    }
+
+    /**
+     * @return number of peers at or above the median rate the torrent must keep for a slow peer to be evicted
+     */
+    public int getPeerMinFastPeers() {
+        return values.peerMinFastPeers;
+    }
+
+    /**
+     * @return true if the persistently slow peers should be banned, otherwise they're only counted
+     */
+    public boolean isPeerEvictSlow() {
+        return values.peerEvictSlow;
+    }
+
+    /**
+     * @return time in milliseconds an evicted peer address stays banned
+     */
+    public long getPeerBanTime() {
+        return values.peerBanTime;
+    }
 }
@@ -0,0 +1,119 @@
+package me.rkfg.pfe;
+
+import java.nio.file.FileStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.swig.set_piece_hashes_listener;
+
+/**
+ * A queued or running share. The future is completed with the handle of the created torrent.
+ */
+public class ShareJob {
+
+    public enum State {
+        QUEUED, SCANNING, HASHING, DONE, FAILED, CANCELLED
+    }
+
+    private ShareQueue queue;
+    private List<String> paths;
+    // null if it couldn't be determined
+    private FileStore device;
+    private set_piece_hashes_listener listener;
+    private PFEFuture<TorrentHandle> future = new PFEFuture<>();
+    private volatile State state = State.QUEUED;
+    private volatile int progress;
+    // guarded by this
+    private Thread runner;
+
+    ShareJob(ShareQueue queue, FileStore device, set_piece_hashes_listener listener, String... paths) {
+        this.queue = queue;
+        this.device = device;
+        this.listener = listener;
+        this.paths = Arrays.asList(paths);
+    }
+
+    public Future<TorrentHandle> getFuture() {
+        return future;
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @return the device the shared files are on, jobs on the same device share its concurrency limit
+     */
+    public String getDevice() {
+        return device == null ? "" : device.toString();
+    }
+
+    FileStore getFileStore() {
+        return device;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return hashing progress in percents
+     */
+    public int getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return number of jobs waiting before this one on the same device, -1 if the job isn't queued
+     */
+    public int getQueuePosition() {
+        return queue.position(this);
+    }
+
+    /**
+     * Remove the job from the queue or stop it if it's running.
+     *
+     * @return false if the job has already finished
+     */
+    public boolean cancel() {
+        if (queue.dequeue(this)) {
+            state = State.CANCELLED;
+            future.cancel(false);
+            return true;
+        }
+        if (!future.cancel(true)) {
+            return false;
+        }
+        state = State.CANCELLED;
+        synchronized (this) {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+        return true;
+    }
+
+    set_piece_hashes_listener getListener() {
+        return listener;
+    }
+
+    PFEFuture<TorrentHandle> getPFEFuture() {
+        return future;
+    }
+
+    void setState(State state) {
+        if (this.state != State.CANCELLED) {
+            this.state = state;
+        }
+    }
+
+    void setProgress(int progress) {
+        this.progress = progress;
+    }
+
+    synchronized void setRunner(Thread runner) {
+        this.runner = runner;
+    }
+}
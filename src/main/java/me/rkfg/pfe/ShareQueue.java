@@ -0,0 +1,173 @@
+package me.rkfg.pfe;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.swig.set_piece_hashes_listener;
+
+/**
+ * Runs share jobs in the background. Jobs are grouped by the device their files are on and only a limited number of
+ * jobs per device run at once so concurrent shares don't compete for the same disk, jobs on different devices run in
+ * parallel.
+ */
+public class ShareQueue {
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private Callback callback;
+    private int perDevice;
+    // the file store identifies the mount, its name doesn't (every tmpfs is "tmpfs"); guarded by this
+    private Map<FileStore, Device> devices = new HashMap<>();
+    private ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+        AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Share job " + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    interface Callback {
+        /**
+         * Create and add the torrent, called on a job thread.
+         */
+        TorrentHandle share(ShareJob job) throws InterruptedException;
+    }
+
+    private static class Device {
+        Deque<ShareJob> queued = new ArrayDeque<>();
+        int running;
+    }
+
+    /**
+     * @param perDevice
+     *            number of jobs running at once on a single device
+     */
+    ShareQueue(int perDevice, Callback callback) {
+        this.perDevice = Math.max(1, perDevice);
+        this.callback = callback;
+    }
+
+    public ShareJob submit(set_piece_hashes_listener listener, String... paths) {
+        if (paths.length == 0) {
+            throw new PFEException("Nothing to share.");
+        }
+        ShareJob job = new ShareJob(this, device(paths[0]), listener, paths);
+        synchronized (this) {
+            Device device = devices.get(job.getFileStore());
+            if (device == null) {
+                device = new Device();
+                devices.put(job.getFileStore(), device);
+            }
+            device.queued.add(job);
+            startNext(device);
+        }
+        return job;
+    }
+
+    private FileStore device(String path) {
+        try {
+            return Files.getFileStore(Paths.get(path).toAbsolutePath());
+        } catch (IOException e) {
+            // the job will fail with a proper message
+            return null;
+        }
+    }
+
+    private void startNext(Device device) {
+        while (device.running < perDevice && !device.queued.isEmpty()) {
+            final ShareJob job = device.queued.poll();
+            device.running++;
+            try {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            execute(job);
+                        } finally {
+                            finished(job);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shut down
+                device.running--;
+                job.setState(ShareJob.State.FAILED);
+                job.getPFEFuture().fail(new PFEException("Share queue is shut down"));
+            }
+        }
+        if (device.running == 0 && device.queued.isEmpty()) {
+            devices.values().remove(device);
+        }
+    }
+
+    private void execute(ShareJob job) {
+        job.setRunner(Thread.currentThread());
+        try {
+            TorrentHandle handle = callback.share(job);
+            job.setState(ShareJob.State.DONE);
+            job.getPFEFuture().complete(handle);
+        } catch (InterruptedException | RuntimeException e) {
+            if (job.getFuture().isCancelled()) {
+                log.info("Share of {} cancelled", job.getPaths());
+            } else {
+                log.warn("Share of {} failed: {}", job.getPaths(), e.getMessage());
+                job.setState(ShareJob.State.FAILED);
+                job.getPFEFuture().fail(e);
+            }
+        } finally {
+            job.setRunner(null);
+            // don't let a late cancel interrupt the next job on this thread
+            Thread.interrupted();
+        }
+    }
+
+    private synchronized void finished(ShareJob job) {
+        Device device = devices.get(job.getFileStore());
+        device.running--;
+        startNext(device);
+    }
+
+    synchronized boolean dequeue(ShareJob job) {
+        Device device = devices.get(job.getFileStore());
+        return device != null && device.queued.remove(job);
+    }
+
+    synchronized int position(ShareJob job) {
+        Device device = devices.get(job.getFileStore());
+        if (device == null) {
+            return -1;
+        }
+        int position = 0;
+        for (ShareJob queued : device.queued) {
+            if (queued == job) {
+                return position;
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,274 @@
+package me.rkfg.pfe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.frostwire.jlibtorrent.PeerInfo;
+import com.frostwire.jlibtorrent.Session;
+import com.frostwire.jlibtorrent.swig.address;
+import com.frostwire.jlibtorrent.swig.error_code;
+import com.frostwire.jlibtorrent.swig.ip_filter;
+
+/**
+ * Finds the peers that hold piece requests of a downloading torrent but send at a trickle. Every check samples the
+ * peers of all the downloads: a peer is slow if it has outstanding requests and either its payload rate is far below
+ * the median of the torrent's peers with outstanding requests or draining its request queue at the current rate would
+ * take too long. Peers slow for several checks in a row are evicted if the torrent has enough faster peers to take over
+ * their requests. Eviction is optional, the decisions are counted in the metrics either way so the thresholds can be
+ * tuned first.
+ * <p>
+ * libtorrent 1.1 can't disconnect a single peer, so evicted addresses are blocked in the IP filter of the session the
+ * torrent belongs to for a while. That disconnects them from all torrents of the session, addresses that also have a
+ * good connection to the torrent (several clients behind NAT) are never evicted.
+ */
+public class SlowPeerMonitor extends TimerTask {
+
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private SessionShards sessions;
+    private TorrentRegistry registry;
+    private SettingsStorage settingsStorage;
+    // torrent hex hash + peer endpoint => consecutive slow checks
+    private Map<String, Integer> slowChecks = new HashMap<>();
+    // session => address => ban expiration time
+    private Map<Session, Map<String, Long>> bans = new HashMap<>();
+    private volatile int slowPeers;
+    private volatile int bannedPeers;
+    private Metrics.Counter samples;
+    private Metrics.Counter candidates;
+    private Metrics.Counter evictions;
+    private Metrics.Counter kept;
+    private Metrics.Counter unbans;
+    private Metrics.Timer checkTimer;
+
+    private static class Sample {
+        String endpoint;
+        String address;
+        int rate;
+        int queue;
+        boolean slow;
+
+        public Sample(String endpoint, int rate, int queue) {
+            this.endpoint = endpoint;
+            this.address = address(endpoint);
+            this.rate = rate;
+            this.queue = queue;
+        }
+    }
+
+    public SlowPeerMonitor(SessionShards sessions, TorrentRegistry registry, SettingsStorage settingsStorage, Metrics metrics) {
+        this.sessions = sessions;
+        this.registry = registry;
+        this.settingsStorage = settingsStorage;
+        samples = metrics.counter("pfe_peer_samples_total", "Peers of the downloading torrents checked for slowness");
+        candidates = metrics.counter("pfe_slow_peer_candidates_total",
+                "Persistently slow peers that could be replaced by faster ones, evicted if peer_evict_slow is on");
+        evictions = metrics.counter("pfe_slow_peer_evictions_total", "Slow peers evicted by a temporary IP ban");
+        kept = metrics.counter("pfe_slow_peer_kept_total", "Persistently slow peers kept as there were no faster ones");
+        unbans = metrics.counter("pfe_slow_peer_unbans_total", "Temporary IP bans of the slow peers lifted");
+        checkTimer = metrics.timer("pfe_peer_check_seconds", "Time spent sampling and ranking the peers");
+        metrics.gauge("pfe_slow_peers", "Peers found slow by the last check", new Metrics.GaugeValue() {
+
+            @Override
+            public double get() {
+                return slowPeers;
+            }
+        });
+        metrics.gauge("pfe_banned_peers", "Addresses currently banned for being slow", new Metrics.GaugeValue() {
+
+            @Override
+            public double get() {
+                return bannedPeers;
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        long start = checkTimer.start();
+        try {
+            check(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            log.warn("Peer check failed: {}", e.getMessage());
+        } finally {
+            checkTimer.stop(start);
+        }
+    }
+
+    private void check(long now) {
+        // the published rows are safe to read outside of the progress thread
+        TorrentSnapshot downloads = registry.snapshot(new TorrentSnapshot.Filter() {
+
+            @Override
+            public boolean accept(TorrentSnapshot.Row row) {
+                return (row.getFlags() & (TorrentSnapshot.PAUSED | TorrentSnapshot.COMPLETE)) == 0;
+            }
+        }, -1);
+        Set<String> seen = new HashSet<>();
+        Set<Session> changed = new HashSet<>();
+        int slow = 0;
+        for (int i = 0; i < downloads.size(); i++) {
+            TorrentRegistry.Entry t = registry.getByBase32(downloads.getHash(i));
+            if (t == null) {
+                continue;
+            }
+            List<PeerInfo> peers = t.getHandle().peerInfo();
+            if (peers == null || peers.isEmpty()) {
+                continue;
+            }
+            List<Sample> torrentSamples = new ArrayList<>(peers.size());
+            for (PeerInfo peer : peers) {
+                torrentSamples.add(new Sample(peer.getIp(), peer.getPayloadDownSpeed(), peer.getSwig().getDownload_queue_length()));
+            }
+            samples.add(torrentSamples.size());
+            slow += rank(t, torrentSamples, seen, changed, now);
+        }
+        // peers that recovered or left start over
+        slowChecks.keySet().retainAll(seen);
+        slowPeers = slow;
+        expireBans(now, changed);
+        for (Session session : changed) {
+            applyBans(session);
+        }
+    }
+
+    /**
+     * Mark the slow peers of the torrent and evict the persistently slow ones.
+     *
+     * @return number of slow peers
+     */
+    private int rank(TorrentRegistry.Entry t, List<Sample> torrentSamples, Set<String> seen, Set<Session> changed, long now) {
+        // idle peers send nothing because nothing is requested from them, they'd drag the median to 0
+        int busy = 0;
+        int[] rates = new int[torrentSamples.size()];
+        for (Sample sample : torrentSamples) {
+            if (sample.queue > 0) {
+                rates[busy++] = sample.rate;
+            }
+        }
+        if (busy == 0) {
+            return 0;
+        }
+        Arrays.sort(rates, 0, busy);
+        int median = rates[busy / 2];
+        long minRate = median * (long) settingsStorage.getPeerSlowRatio() / 100;
+        long maxLatency = settingsStorage.getPeerMaxRequestLatency();
+        int fast = 0;
+        Set<String> goodAddresses = new HashSet<>();
+        int slow = 0;
+        for (Sample sample : torrentSamples) {
+            if (sample.queue > 0) {
+                // time to receive the requested blocks at the current rate
+                long latency = sample.rate > 0 ? TimeUnit.SECONDS.toMillis((long) sample.queue * BLOCK_SIZE) / sample.rate
+                        : Long.MAX_VALUE;
+                sample.slow = sample.rate < minRate || maxLatency > 0 && latency > maxLatency;
+            }
+            if (sample.slow) {
+                slow++;
+            } else {
+                goodAddresses.add(sample.address);
+                if (sample.queue > 0 && sample.rate >= median && sample.rate > 0) {
+                    fast++;
+                }
+            }
+        }
+        int requiredChecks = settingsStorage.getPeerSlowChecks();
+        for (Sample sample : torrentSamples) {
+            if (!sample.slow) {
+                continue;
+            }
+            String key = t.getHex() + " " + sample.endpoint;
+            seen.add(key);
+            Integer count = slowChecks.get(key);
+            count = count == null ? 1 : count + 1;
+            if (count < requiredChecks) {
+                slowChecks.put(key, count);
+                continue;
+            }
+            slowChecks.remove(key);
+            if (fast < settingsStorage.getPeerMinFastPeers() || goodAddresses.contains(sample.address)) {
+                kept.increment();
+                continue;
+            }
+            candidates.increment();
+            if (!settingsStorage.isPeerEvictSlow()) {
+                log.debug("Slow peer {} of {}: {} B/s, {} requests queued, median {} B/s", sample.endpoint, t.getActivity().name,
+                        sample.rate, sample.queue, median);
+                continue;
+            }
+            Session session = sessions.get(t.getHex());
+            Map<String, Long> sessionBans = bans.get(session);
+            if (sessionBans == null) {
+                sessionBans = new HashMap<>();
+                bans.put(session, sessionBans);
+            }
+            if (sessionBans.put(sample.address, now + settingsStorage.getPeerBanTime()) == null) {
+                log.info("Evicting slow peer {} of {}: {} B/s, {} requests queued, median {} B/s", sample.endpoint,
+                        t.getActivity().name, sample.rate, sample.queue, median);
+                evictions.increment();
+                changed.add(session);
+            }
+        }
+        return slow;
+    }
+
+    private void expireBans(long now, Set<Session> changed) {
+        int banned = 0;
+        for (Map.Entry<Session, Map<String, Long>> sessionBans : bans.entrySet()) {
+            for (Iterator<Long> it = sessionBans.getValue().values().iterator(); it.hasNext();) {
+                if (it.next() < now) {
+                    it.remove();
+                    unbans.increment();
+                    changed.add(sessionBans.getKey());
+                }
+            }
+            banned += sessionBans.getValue().size();
+        }
+        bannedPeers = banned;
+    }
+
+    /**
+     * Replace the session IP filter with the current bans, libtorrent disconnects the peers blocked by it.
+     */
+    private void applyBans(Session session) {
+        ip_filter filter = new ip_filter();
+        for (String banned : bans.get(session).keySet()) {
+            error_code ec = new error_code();
+            address addr = address.from_string(banned, ec);
+            if (ec.value() != 0) {
+                log.warn("Can't ban {}: {}", banned, ec.message());
+                continue;
+            }
+            filter.add_rule(addr, addr, ip_filter.access_flags.blocked.swigValue());
+        }
+        session.getSwig().set_ip_filter(filter);
+    }
+
+    /**
+     * @return the address part of an "address:port" endpoint, IPv6 addresses may be in brackets
+     */
+    static String address(String endpoint) {
+        if (endpoint.startsWith("[")) {
+            int end = endpoint.indexOf(']');
+            return end > 0 ? endpoint.substring(1, end) : endpoint;
+        }
+        int colon = endpoint.lastIndexOf(':');
+        if (colon > 0 && endpoint.indexOf(':') == colon) {
+            return endpoint.substring(0, colon);
+        }
+        return endpoint;
+    }
+}
@@ -0,0 +1,47 @@
+package me.rkfg.pfe;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter for values updated from many threads. Every thread adds to one of several cells picked by its id,
+ * the cells are a cache line apart so concurrent updates don't contend. Reading sums up all the cells.
+ */
+public class StripedCounter {
+
+    // longs per cache line
+    private static final int PADDING = 8;
+    private static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void add(long value) {
+        cells.getAndAdd(cell(), value);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int cell() {
+        long id = Thread.currentThread().getId();
+        // spread sequential thread ids
+        int hash = (int) (id ^ id >>> 32) * 0x9E3779B9;
+        return (hash >>> 16 & STRIPES - 1) * PADDING;
+    }
+}
@@ -0,0 +1,267 @@
+package me.rkfg.pfe;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * In-memory swarm state of the embedded tracker. Every swarm keeps its peers in parallel primitive arrays with an open
+ * addressing index by endpoint so an announce doesn't allocate anything but the response. Peers that stop announcing
+ * are expired. Only IPv4 peers are stored as the compact peer list can't hold anything else. Not thread safe, the
+ * tracker uses it from its selector thread only.
+ */
+public class SwarmTable {
+
+    private static final int MIN_CAPACITY = 8;
+    private static final int PEER_SIZE = 6;
+
+    // info hash bytes as an ISO-8859-1 string => swarm
+    private Map<String, Swarm> swarms = new HashMap<>();
+    private Random random = new Random();
+    private volatile int peerCount;
+    private volatile int swarmCount;
+
+    public static class Swarm {
+        private int size;
+        private int seeds;
+        // address << 16 | port
+        private long[] endpoints = new long[MIN_CAPACITY];
+        private long[] expires = new long[MIN_CAPACITY];
+        private boolean[] seed = new boolean[MIN_CAPACITY];
+        // endpoint => slot + 1, 0 marks a free position
+        private int[] index = new int[MIN_CAPACITY * 2];
+
+        public int getSeeds() {
+            return seeds;
+        }
+
+        public int getLeechers() {
+            return size - seeds;
+        }
+
+        /**
+         * @return index position holding the endpoint or the free position it would take
+         */
+        private int position(long endpoint) {
+            int mask = index.length - 1;
+            int pos = hash(endpoint) & mask;
+            while (index[pos] != 0 && endpoints[index[pos] - 1] != endpoint) {
+                pos = (pos + 1) & mask;
+            }
+            return pos;
+        }
+
+        private void put(long endpoint, boolean isSeed, long expire) {
+            int pos = position(endpoint);
+            int slot = index[pos] - 1;
+            if (slot < 0) {
+                if (size == endpoints.length) {
+                    grow();
+                    pos = position(endpoint);
+                }
+                slot = size++;
+                index[pos] = slot + 1;
+                endpoints[slot] = endpoint;
+                seed[slot] = false;
+            }
+            if (seed[slot] != isSeed) {
+                seeds += isSeed ? 1 : -1;
+                seed[slot] = isSeed;
+            }
+            expires[slot] = expire;
+        }
+
+        /**
+         * @return true if the peer was in the swarm
+         */
+        private boolean remove(long endpoint) {
+            int pos = position(endpoint);
+            if (index[pos] == 0) {
+                return false;
+            }
+            removeSlot(pos, index[pos] - 1);
+            return true;
+        }
+
+        private void removeSlot(int pos, int slot) {
+            removeIndex(pos);
+            if (seed[slot]) {
+                seeds--;
+            }
+            int last = --size;
+            if (slot != last) {
+                // move the last peer into the hole, its index entry still finds it at the old slot
+                endpoints[slot] = endpoints[last];
+                expires[slot] = expires[last];
+                seed[slot] = seed[last];
+                index[position(endpoints[slot])] = slot + 1;
+            }
+        }
+
+        /**
+         * Free the index position shifting back the entries of the same probe chain.
+         */
+        private void removeIndex(int pos) {
+            int mask = index.length - 1;
+            int free = pos;
+            index[free] = 0;
+            int i = (free + 1) & mask;
+            while (index[i] != 0) {
+                int home = hash(endpoints[index[i] - 1]) & mask;
+                if (((i - home) & mask) >= ((i - free) & mask)) {
+                    index[free] = index[i];
+                    index[i] = 0;
+                    free = i;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void grow() {
+            int capacity = endpoints.length * 2;
+            long[] newEndpoints = new long[capacity];
+            long[] newExpires = new long[capacity];
+            boolean[] newSeed = new boolean[capacity];
+            System.arraycopy(endpoints, 0, newEndpoints, 0, size);
+            System.arraycopy(expires, 0, newExpires, 0, size);
+            System.arraycopy(seed, 0, newSeed, 0, size);
+            endpoints = newEndpoints;
+            expires = newExpires;
+            seed = newSeed;
+            index = new int[capacity * 2];
+            for (int slot = 0; slot < size; slot++) {
+                index[position(endpoints[slot])] = slot + 1;
+            }
+        }
+
+        /**
+         * @return number of peers removed
+         */
+        private int expire(long now) {
+            int removed = 0;
+            for (int slot = size - 1; slot >= 0; slot--) {
+                if (expires[slot] < now) {
+                    removeSlot(position(endpoints[slot]), slot);
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        /**
+         * Write up to {@code count} peers in the compact format starting at a random one so every announce gets a
+         * different part of a large swarm. Seeds don't get other seeds.
+         */
+        private void writePeers(ByteBuffer out, long self, boolean forSeed, int count, int start) {
+            for (int i = 0; i < size && count > 0 && out.remaining() >= PEER_SIZE; i++) {
+                int slot = (start + i) % size;
+                long endpoint = endpoints[slot];
+                if (endpoint == self || forSeed && seed[slot]) {
+                    continue;
+                }
+                out.putInt((int) (endpoint >>> 16));
+                out.putShort((short) endpoint);
+                count--;
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public static long endpoint(int address, int port) {
+        return (address & 0xffffffffL) << 16 | (port & 0xffff);
+    }
+
+    /**
+     * Register the announce and write the peers for the announcing client.
+     *
+     * @param infoHash
+     *            info hash bytes as an ISO-8859-1 string
+     * @param endpoint
+     *            announcing peer from {@link #endpoint(int, int)}
+     * @param seed
+     *            true if the peer has the whole torrent
+     * @param stopped
+     *            true if the peer leaves the swarm
+     * @param numWant
+     *            maximum number of peers to return
+     * @param expire
+     *            time when the peer is forgotten unless it announces again
+     * @param peers
+     *            receives the compact peer list
+     * @return the swarm or null if it's empty
+     */
+    public Swarm announce(String infoHash, long endpoint, boolean seed, boolean stopped, int numWant, long expire,
+            ByteBuffer peers) {
+        Swarm swarm = swarms.get(infoHash);
+        if (stopped) {
+            if (swarm != null && swarm.remove(endpoint)) {
+                peerCount--;
+                if (swarm.size == 0) {
+                    swarms.remove(infoHash);
+                    swarmCount = swarms.size();
+                    return null;
+                }
+            }
+            return swarm;
+        }
+        if (swarm == null) {
+            swarm = new Swarm();
+            swarms.put(infoHash, swarm);
+            swarmCount = swarms.size();
+        }
+        int before = swarm.size;
+        swarm.put(endpoint, seed, expire);
+        peerCount += swarm.size - before;
+        swarm.writePeers(peers, endpoint, seed, numWant, random.nextInt(swarm.size));
+        return swarm;
+    }
+
+    /**
+     * Write the peers of the swarm without registering the client.
+     *
+     * @return the swarm or null if it's unknown
+     */
+    public Swarm peers(String infoHash, boolean seed, int numWant, ByteBuffer peers) {
+        Swarm swarm = swarms.get(infoHash);
+        if (swarm != null && swarm.size > 0) {
+            swarm.writePeers(peers, -1, seed, numWant, random.nextInt(swarm.size));
+        }
+        return swarm;
+    }
+
+    /**
+     * Forget the peers that didn't announce in time and the swarms left empty.
+     */
+    public void expire(long now) {
+        int removed = 0;
+        for (Iterator<Swarm> it = swarms.values().iterator(); it.hasNext();) {
+            Swarm swarm = it.next();
+            removed += swarm.expire(now);
+            if (swarm.size == 0) {
+                it.remove();
+            }
+        }
+        peerCount -= removed;
+        swarmCount = swarms.size();
+    }
+
+    /**
+     * @return number of peers in all swarms, safe to call from any thread
+     */
+    public int getPeerCount() {
+        return peerCount;
+    }
+
+    /**
+     * @return number of swarms, safe to call from any thread
+     */
+    public int getSwarmCount() {
+        return swarmCount;
+    }
+}
@@ -20,4 +20,21 @@ public class TorrentActivity {
         this.hash = PFECore.getHash(handle);
     }
 
+    public TorrentActivity(String hash) {
+        this.hash = hash;
+    }
+
+    public TorrentActivity(TorrentActivity other) {
+        upload = other.upload;
+        timestamp = other.timestamp;
+        progress = other.progress;
+        name = other.name;
+        hash = other.hash;
+        size = other.size;
+        complete = other.complete;
+        uploading = other.uploading;
+        seedPercent = other.seedPercent;
+        peers = other.peers;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,284 @@
+package me.rkfg.pfe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.Sha1Hash;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.TorrentRemovedAlert;
+
+/**
+ * Central index of the session torrents. Every torrent is registered once with all the hash encodings computed
+ * upfront, the entries can then be found by handle id, Base32 or hex hash without any conversions. Entries are evicted
+ * when libtorrent reports the torrent removal.
+ */
+public class TorrentRegistry implements AlertListener {
+
+    // changes remembered for the snapshot deltas
+    private static final int MAX_CHANGES = 262144;
+
+    private LongObjectMap<Entry> byId = new LongObjectMap<>();
+    private Map<String, Entry> byBase32 = new HashMap<>();
+    private Map<String, Entry> byHex = new HashMap<>();
+    // version of the published rows, bumped by every publish that changed something and by every removal
+    private long version;
+    // published rows and removals in version order
+    private ArrayDeque<Change> changes = new ArrayDeque<>();
+    // snapshot deltas can't be computed for the versions before this one as the changes were dropped
+    private long horizon;
+
+    private static class Change {
+        long version;
+        String base32;
+
+        public Change(long version, String base32) {
+            this.version = version;
+            this.base32 = base32;
+        }
+    }
+
+    public static class Entry {
+        private long id;
+        private TorrentHandle handle;
+        private Sha1Hash sha1;
+        private String hex;
+        private String base32;
+        private TorrentActivity activity;
+        // progress tracking state, only accessed from the progress thread
+        boolean paused;
+        // a seeding deadline of the torrent is in the progress tracker queue
+        boolean deadlineQueued;
+        // paused because of the seeding limits
+        boolean stopped;
+        // paused by the scheduler
+        boolean queued;
+        // when the scheduler last started or queued the torrent, 0 if it hasn't seen it yet
+        long scheduledAt;
+        float progress;
+        // payload rates in bytes per second, read by the metrics
+        volatile int uploadRate;
+        volatile int downloadRate;
+        // the latest published state, read by the snapshots
+        volatile TorrentSnapshot.Row row;
+
+        Entry(long id, TorrentHandle handle, Sha1Hash sha1, String hex, String base32) {
+            this.id = id;
+            this.handle = handle;
+            this.sha1 = sha1;
+            this.hex = hex;
+            this.base32 = base32;
+            this.activity = new TorrentActivity(base32);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public TorrentHandle getHandle() {
+            return handle;
+        }
+
+        public Sha1Hash getSha1() {
+            return sha1;
+        }
+
+        public String getHex() {
+            return hex;
+        }
+
+        public String getBase32() {
+            return base32;
+        }
+
+        public TorrentActivity getActivity() {
+            return activity;
+        }
+    }
+
+    public interface Visitor {
+        void visit(Entry entry);
+    }
+
+    interface RowBuilder {
+        /**
+         * @return the new row of the torrent or null if it hasn't changed
+         */
+        TorrentSnapshot.Row build(Entry entry, long version);
+    }
+
+    @Override
+    public int[] types() {
+        return new int[] { AlertType.TORRENT_REMOVED.getSwig() };
+    }
+
+    @Override
+    public void alert(Alert<?> alert) {
+        if (alert instanceof TorrentRemovedAlert) {
+            remove(((TorrentRemovedAlert) alert).infoHash().toHex());
+        }
+    }
+
+    /**
+     * @return the entry of the torrent, it's created if the torrent isn't registered yet
+     */
+    public Entry register(TorrentHandle handle) {
+        long id = handle.getSwig().id();
+        synchronized (this) {
+            Entry entry = byId.get(id);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        // conversions and native calls are done outside of the lock
+        Sha1Hash sha1 = handle.getInfoHash();
+        return register(id, handle, sha1, sha1.toHex());
+    }
+
+    /**
+     * Register the torrent using the hash obtained by the caller.
+     */
+    Entry register(long id, TorrentHandle handle, Sha1Hash sha1, String hex) {
+        String base32 = HashCodec.hexToBase32(hex);
+        synchronized (this) {
+            Entry entry = byHex.get(hex);
+            if (entry == null || entry.id != id) {
+                if (entry != null) {
+                    byId.remove(entry.id);
+                }
+                entry = new Entry(id, handle, sha1, hex, base32);
+                byHex.put(hex, entry);
+                byBase32.put(base32, entry);
+            }
+            byId.put(id, entry);
+            return entry;
+        }
+    }
+
+    public synchronized Entry get(long id) {
+        return byId.get(id);
+    }
+
+    public synchronized Entry getByBase32(String base32) {
+        return byBase32.get(base32);
+    }
+
+    public synchronized Entry getByHex(String hex) {
+        return byHex.get(hex);
+    }
+
+    public synchronized Entry remove(String hex) {
+        Entry entry = byHex.remove(hex);
+        if (entry != null) {
+            byBase32.remove(entry.base32);
+            if (byId.get(entry.id) == entry) {
+                byId.remove(entry.id);
+            }
+            if (entry.row != null) {
+                // snapshots taken from now on carry the removal
+                log(++version, entry.base32);
+            }
+        }
+        return entry;
+    }
+
+    public synchronized int size() {
+        return byHex.size();
+    }
+
+    /**
+     * Visit all registered torrents while holding the registry lock, the visitor shouldn't block.
+     */
+    public synchronized void forEach(Visitor visitor) {
+        for (Entry entry : byHex.values()) {
+            visitor.visit(entry);
+        }
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Publish the new rows of the torrents changed during a tick with the next version. Snapshots see either all the rows
+     * of the version or none of them.
+     */
+    synchronized void publish(Collection<Entry> touched, RowBuilder builder) {
+        long next = version + 1;
+        boolean published = false;
+        for (Entry entry : touched) {
+            if (byHex.get(entry.hex) != entry) {
+                // removed or replaced meanwhile
+                continue;
+            }
+            TorrentSnapshot.Row row = builder.build(entry, next);
+            if (row != null) {
+                entry.row = row;
+                log(next, entry.base32);
+                published = true;
+            }
+        }
+        if (published) {
+            version = next;
+        }
+    }
+
+    private void log(long version, String base32) {
+        changes.add(new Change(version, base32));
+        if (changes.size() > MAX_CHANGES) {
+            horizon = changes.poll().version;
+        }
+    }
+
+    /**
+     * @param filter
+     *            selects the torrents, null for all
+     * @param since
+     *            version of the previous snapshot to get the changes after it, negative for all torrents
+     */
+    public synchronized TorrentSnapshot snapshot(TorrentSnapshot.Filter filter, long since) {
+        if (since < 0 || since < horizon || since > version) {
+            List<TorrentSnapshot.Row> rows = new ArrayList<>(byHex.size());
+            for (Entry entry : byHex.values()) {
+                TorrentSnapshot.Row row = entry.row;
+                if (row != null && (filter == null || filter.accept(row))) {
+                    rows.add(row);
+                }
+            }
+            return new TorrentSnapshot(version, true, rows, Collections.<String> emptyList());
+        }
+        List<TorrentSnapshot.Row> rows = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        Iterator<Change> iterator = changes.descendingIterator();
+        while (iterator.hasNext()) {
+            Change change = iterator.next();
+            if (change.version <= since) {
+                break;
+            }
+            if (!seen.add(change.base32)) {
+                // only the latest change of the torrent matters
+                continue;
+            }
+            Entry entry = byBase32.get(change.base32);
+            TorrentSnapshot.Row row = entry == null ? null : entry.row;
+            if (row == null) {
+                // removed or replaced by an entry not published yet
+                removed.add(change.base32);
+            } else if (filter == null || filter.accept(row)) {
+                rows.add(row);
+            }
+        }
+        return new TorrentSnapshot(version, false, rows, removed);
+    }
+}
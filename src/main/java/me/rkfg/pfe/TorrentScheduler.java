@@ -0,0 +1,195 @@
+package me.rkfg.pfe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of torrents running at once. Downloads and seeds are ranked separately by peer demand, seeds with
+ * a higher upload ratio rank lower. Queued torrents gain priority while they wait so idle seeds are rotated out in favor
+ * of the ones that haven't announced for a while. Torrents stopped by the seeding limits are never scheduled. Called
+ * from the progress thread as it owns the torrent tracking state.
+ */
+public class TorrentScheduler {
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private SettingsStorage settingsStorage;
+    private ListenerDispatcher dispatcher;
+    private TorrentRegistry registry;
+    private boolean started;
+    private long lastRun;
+
+    private static class Candidate {
+        TorrentRegistry.Entry entry;
+        double score;
+
+        public Candidate(TorrentRegistry.Entry entry, double score) {
+            this.entry = entry;
+            this.score = score;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_SCORE = new Comparator<Candidate>() {
+
+        @Override
+        public int compare(Candidate o1, Candidate o2) {
+            return Double.compare(o2.score, o1.score);
+        }
+    };
+
+    public TorrentScheduler(TorrentRegistry registry, SettingsStorage settingsStorage, ListenerDispatcher dispatcher) {
+        this.registry = registry;
+        this.settingsStorage = settingsStorage;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Rotate the active torrents if the scheduler interval has passed.
+     *
+     * @param touched
+     *            collects the torrents queued, promoted or demoted
+     */
+    public void tick(long now, Set<TorrentRegistry.Entry> touched) {
+        final int maxDownloads = settingsStorage.getMaxActiveDownloads();
+        final int maxSeeds = settingsStorage.getMaxActiveSeeds();
+        // runs even without limits to start the torrents queued before the limits were removed
+        if (started && now - lastRun < settingsStorage.getSchedulerInterval()) {
+            return;
+        }
+        started = true;
+        lastRun = now;
+        final List<TorrentRegistry.Entry> downloads = new ArrayList<>();
+        final List<TorrentRegistry.Entry> seeds = new ArrayList<>();
+        registry.forEach(new TorrentRegistry.Visitor() {
+
+            @Override
+            public void visit(TorrentRegistry.Entry t) {
+                // paused by the user or by the seeding limits
+                if (t.stopped || t.paused && !t.queued) {
+                    return;
+                }
+                if (t.getActivity().complete) {
+                    seeds.add(t);
+                } else {
+                    downloads.add(t);
+                }
+            }
+        });
+        Set<TorrentActivity> queued = new HashSet<>();
+        Set<TorrentActivity> promoted = new HashSet<>();
+        Set<TorrentActivity> demoted = new HashSet<>();
+        schedule(downloads, maxDownloads, now, touched, queued, promoted, demoted);
+        schedule(seeds, maxSeeds, now, touched, queued, promoted, demoted);
+        if (!queued.isEmpty()) {
+            dispatcher.torrentQueued(queued);
+        }
+        if (!demoted.isEmpty()) {
+            dispatcher.torrentDemoted(demoted);
+        }
+        if (!promoted.isEmpty()) {
+            dispatcher.torrentPromoted(promoted);
+        }
+    }
+
+    /**
+     * Keep the highest ranked torrents active. Torrents started recently are left alone to let them announce and
+     * collect peers before they're judged.
+     */
+    void schedule(List<TorrentRegistry.Entry> torrents, int limit, long now, Set<TorrentRegistry.Entry> touched,
+            Set<TorrentActivity> queued, Set<TorrentActivity> promoted, Set<TorrentActivity> demoted) {
+        if (limit <= 0) {
+            // the limit could have been removed, start everything we've queued
+            for (TorrentRegistry.Entry t : torrents) {
+                if (t.queued) {
+                    promote(t, now, touched, promoted);
+                }
+            }
+            return;
+        }
+        long minActiveTime = settingsStorage.getSchedulerMinActiveTime();
+        long interval = settingsStorage.getSchedulerInterval();
+        int slots = limit;
+        List<TorrentRegistry.Entry> fresh = new ArrayList<>();
+        List<Candidate> candidates = new ArrayList<>();
+        for (TorrentRegistry.Entry t : torrents) {
+            if (t.scheduledAt == 0) {
+                fresh.add(t);
+            } else if (!t.queued && now - t.scheduledAt < minActiveTime) {
+                slots--;
+            } else {
+                candidates.add(new Candidate(t, score(t, now, interval)));
+            }
+        }
+        // new torrents are started if there's room, otherwise they wait in the queue like the rest
+        int established = 0;
+        for (Candidate candidate : candidates) {
+            if (!candidate.entry.queued) {
+                established++;
+            }
+        }
+        for (TorrentRegistry.Entry t : fresh) {
+            // libtorrent's own queue would fight ours
+            t.getHandle().setAutoManaged(false);
+            t.scheduledAt = now;
+            if (slots - established > 0) {
+                slots--;
+            } else {
+                t.queued = true;
+                t.paused = true;
+                t.getHandle().pause();
+                touched.add(t);
+                queued.add(t.getActivity());
+            }
+        }
+        Collections.sort(candidates, BY_SCORE);
+        for (Candidate candidate : candidates) {
+            TorrentRegistry.Entry t = candidate.entry;
+            if (slots > 0) {
+                slots--;
+                if (t.queued) {
+                    promote(t, now, touched, promoted);
+                }
+            } else if (!t.queued) {
+                log.debug("Demoting '{}', score {}", t.getActivity().name, candidate.score);
+                t.scheduledAt = now;
+                t.queued = true;
+                t.paused = true;
+                t.getHandle().pause();
+                touched.add(t);
+                demoted.add(t.getActivity());
+            }
+        }
+    }
+
+    /**
+     * @return demand of the torrent, queued torrents get a bonus for every scheduler interval they waited
+     */
+    double score(TorrentRegistry.Entry t, long now, long interval) {
+        TorrentActivity activity = t.getActivity();
+        double score = activity.peers / (1 + activity.seedPercent / 100.0);
+        if (t.queued && interval > 0) {
+            score += (double) (now - t.scheduledAt) / interval;
+        }
+        return score;
+    }
+
+    private void promote(TorrentRegistry.Entry t, long now, Set<TorrentRegistry.Entry> touched,
+            Set<TorrentActivity> promoted) {
+        log.debug("Promoting '{}'", t.getActivity().name);
+        t.scheduledAt = now;
+        t.queued = false;
+        t.paused = false;
+        // the time spent in the queue doesn't count towards the seeding timeout
+        t.getActivity().timestamp = now;
+        t.getHandle().resume();
+        touched.add(t);
+        promoted.add(t.getActivity());
+    }
+}
@@ -0,0 +1,241 @@
+package me.rkfg.pfe;
+
+import java.util.List;
+
+/**
+ * Immutable status of many torrents at once stored column by column in primitive arrays. Built from the state the
+ * progress tracker publishes every tick so taking a snapshot doesn't touch libtorrent at all. A snapshot taken with a
+ * version only contains the torrents changed after that version and the hashes of the torrents removed since then.
+ */
+public final class TorrentSnapshot {
+
+    public static final int PAUSED = 1;
+    public static final int QUEUED = 2;
+    public static final int STOPPED = 4;
+    public static final int COMPLETE = 8;
+    public static final int UPLOADING = 16;
+
+    private static final String[] NO_HASHES = new String[0];
+
+    private final long version;
+    private final boolean full;
+    private final String[] hashes;
+    private final float[] progress;
+    private final int[] uploadRates;
+    private final int[] downloadRates;
+    private final int[] peers;
+    private final int[] seedPercents;
+    private final long[] sizes;
+    private final long[] uploaded;
+    private final int[] flags;
+    private final String[] removed;
+
+    /**
+     * State of a single torrent as of the given version, replaced as a whole when anything changes.
+     */
+    public static final class Row {
+        private final String hash;
+        private final long version;
+        private final float progress;
+        private final int uploadRate;
+        private final int downloadRate;
+        private final int peers;
+        private final int seedPercent;
+        private final long size;
+        private final long uploaded;
+        private final int flags;
+
+        Row(String hash, long version, float progress, int uploadRate, int downloadRate, int peers, int seedPercent, long size,
+                long uploaded, int flags) {
+            this.hash = hash;
+            this.version = version;
+            this.progress = progress;
+            this.uploadRate = uploadRate;
+            this.downloadRate = downloadRate;
+            this.peers = peers;
+            this.seedPercent = seedPercent;
+            this.size = size;
+            this.uploaded = uploaded;
+            this.flags = flags;
+        }
+
+        /**
+         * @return true if the values are the same apart from the version
+         */
+        boolean sameAs(float progress, int uploadRate, int downloadRate, int peers, int seedPercent, long size, long uploaded,
+                int flags) {
+            return this.progress == progress && this.uploadRate == uploadRate && this.downloadRate == downloadRate
+                    && this.peers == peers && this.seedPercent == seedPercent && this.size == size && this.uploaded == uploaded
+                    && this.flags == flags;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public float getProgress() {
+            return progress;
+        }
+
+        public int getUploadRate() {
+            return uploadRate;
+        }
+
+        public int getDownloadRate() {
+            return downloadRate;
+        }
+
+        public int getPeers() {
+            return peers;
+        }
+
+        public int getSeedPercent() {
+            return seedPercent;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getUploaded() {
+            return uploaded;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+    }
+
+    /**
+     * Selects the torrents to put into the snapshot.
+     */
+    public interface Filter {
+        boolean accept(Row row);
+    }
+
+    TorrentSnapshot(long version, boolean full, List<Row> rows, List<String> removed) {
+        this.version = version;
+        this.full = full;
+        int size = rows.size();
+        hashes = new String[size];
+        progress = new float[size];
+        uploadRates = new int[size];
+        downloadRates = new int[size];
+        peers = new int[size];
+        seedPercents = new int[size];
+        sizes = new long[size];
+        uploaded = new long[size];
+        flags = new int[size];
+        for (int i = 0; i < size; i++) {
+            Row row = rows.get(i);
+            hashes[i] = row.hash;
+            progress[i] = row.progress;
+            uploadRates[i] = row.uploadRate;
+            downloadRates[i] = row.downloadRate;
+            peers[i] = row.peers;
+            seedPercents[i] = row.seedPercent;
+            sizes[i] = row.size;
+            uploaded[i] = row.uploaded;
+            flags[i] = row.flags;
+        }
+        this.removed = removed.isEmpty() ? NO_HASHES : removed.toArray(new String[removed.size()]);
+    }
+
+    /**
+     * @return version to pass to the next snapshot call to get the changes only
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the snapshot has all the torrents, either because it was requested so or because the requested
+     *         version was too old to compute the changes
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @return number of torrents in the snapshot
+     */
+    public int size() {
+        return hashes.length;
+    }
+
+    /**
+     * @return Base32 info hash of the i-th torrent
+     */
+    public String getHash(int i) {
+        return hashes[i];
+    }
+
+    /**
+     * @return download progress from 0 to 1
+     */
+    public float getProgress(int i) {
+        return progress[i];
+    }
+
+    /**
+     * @return payload upload rate in bytes per second
+     */
+    public int getUploadRate(int i) {
+        return uploadRates[i];
+    }
+
+    /**
+     * @return payload download rate in bytes per second
+     */
+    public int getDownloadRate(int i) {
+        return downloadRates[i];
+    }
+
+    /**
+     * @return number of connected peers that aren't seeds
+     */
+    public int getPeers(int i) {
+        return peers[i];
+    }
+
+    /**
+     * @return uploaded payload in percents of the torrent size
+     */
+    public int getSeedPercent(int i) {
+        return seedPercents[i];
+    }
+
+    /**
+     * @return total size of the torrent in bytes, 0 until the metadata is known
+     */
+    public long getSize(int i) {
+        return sizes[i];
+    }
+
+    /**
+     * @return total payload uploaded by the torrent
+     */
+    public long getUploaded(int i) {
+        return uploaded[i];
+    }
+
+    /**
+     * @return combination of {@link #PAUSED}, {@link #QUEUED}, {@link #STOPPED}, {@link #COMPLETE} and
+     *         {@link #UPLOADING}
+     */
+    public int getFlags(int i) {
+        return flags[i];
+    }
+
+    /**
+     * @return Base32 hashes of the torrents removed after the requested version, empty for the full snapshots. Apply
+     *         them before the rows as a torrent could be removed and added again.
+     */
+    public String[] getRemoved() {
+        return removed.length == 0 ? removed : removed.clone();
+    }
+}
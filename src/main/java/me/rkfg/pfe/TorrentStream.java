@@ -0,0 +1,341 @@
+package me.rkfg.pfe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.FileStorage;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.TorrentInfo;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.PieceFinishedAlert;
+import com.frostwire.jlibtorrent.alerts.TorrentRemovedAlert;
+
+/**
+ * Read-only channel over a file of a torrent that may still be downloading. The pieces of the read-ahead window
+ * starting at the current position get deadlines so libtorrent fetches them first, reads block only until the piece at
+ * the position is downloaded. Finished pieces may still be in the libtorrent write cache so it's flushed before the
+ * file is read, the flushes are shared by all streams of the torrent. Wrap with {@link java.nio.channels.Channels#newInputStream} to get an InputStream.
+ */
+public class TorrentStream implements SeekableByteChannel, AlertListener {
+
+    private TorrentHandle handle;
+    private File file;
+    // offset of the file in the torrent data
+    private long fileOffset;
+    private long size;
+    private int pieceLength;
+    private int firstPiece;
+    private int lastPiece;
+    // in pieces
+    private int readAhead;
+    private int deadline;
+    private long timeout;
+    private CacheFlusher flusher;
+    private CloseListener closeListener;
+
+    private final Object lock = new Object();
+    // the fields below are guarded by the lock
+    private BitSet finished = new BitSet();
+    private BitSet flushed = new BitSet();
+    // finished pieces at the time of the pending flush request
+    private BitSet flushing;
+    private long flushTicket;
+    private boolean removed;
+    private boolean open = true;
+
+    // reader state, guarded by this
+    private long position;
+    private FileChannel channel;
+    private int windowStart;
+    private int windowEnd;
+
+    interface CloseListener {
+        void closed(TorrentStream stream);
+    }
+
+    /**
+     * @param readAhead
+     *            bytes after the current position to prioritize
+     * @param deadline
+     *            milliseconds to download the piece at the position, the following pieces get proportionally more
+     * @param timeout
+     *            milliseconds to wait for a piece, 0 means forever
+     */
+    TorrentStream(TorrentHandle handle, int fileIndex, long readAhead, int deadline, long timeout, CacheFlusher flusher,
+            CloseListener closeListener) {
+        TorrentInfo torrentInfo = handle.getTorrentInfo();
+        if (torrentInfo == null) {
+            throw new PFEException("Torrent metadata isn't available yet");
+        }
+        FileStorage files = torrentInfo.files();
+        if (fileIndex < 0 || fileIndex >= files.numFiles()) {
+            throw new PFEException("Invalid file index " + fileIndex);
+        }
+        this.handle = handle;
+        this.file = new File(files.filePath(fileIndex, handle.getSavePath()));
+        this.fileOffset = files.fileOffset(fileIndex);
+        this.size = files.fileSize(fileIndex);
+        this.pieceLength = torrentInfo.pieceLength();
+        this.firstPiece = (int) (fileOffset / pieceLength);
+        this.lastPiece = (int) ((fileOffset + Math.max(size, 1) - 1) / pieceLength);
+        this.readAhead = (int) Math.max(1, (readAhead + pieceLength - 1) / pieceLength);
+        this.deadline = deadline;
+        this.timeout = timeout;
+        this.flusher = flusher;
+        this.closeListener = closeListener;
+        this.windowStart = firstPiece;
+        this.windowEnd = firstPiece;
+    }
+
+    /**
+     * Called after the stream is subscribed to the torrent alerts so no finished piece is missed.
+     */
+    void start() {
+        handle.setSequentialDownload(true);
+        synchronized (lock) {
+            for (int piece = firstPiece; piece <= lastPiece; piece++) {
+                if (handle.havePiece(piece)) {
+                    finished.set(piece);
+                }
+            }
+        }
+    }
+
+    public TorrentHandle getHandle() {
+        return handle;
+    }
+
+    CacheFlusher getFlusher() {
+        return flusher;
+    }
+
+    /**
+     * Called by the flusher when one of the flushes of the torrent completes.
+     */
+    void flushed() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public int[] types() {
+        return new int[] { AlertType.PIECE_FINISHED.getSwig(), AlertType.TORRENT_REMOVED.getSwig() };
+    }
+
+    @Override
+    public void alert(Alert<?> alert) {
+        synchronized (lock) {
+            if (alert instanceof PieceFinishedAlert) {
+                finished.set(((PieceFinishedAlert) alert).pieceIndex());
+            } else if (alert instanceof TorrentRemovedAlert) {
+                removed = true;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        int piece = pieceAt(position);
+        updateWindow(piece);
+        awaitPiece(piece);
+        // read through all the consecutive pieces already on disk
+        long end = Math.min(size, pieceEnd(piece));
+        while (end < size && isReadable(pieceAt(end))) {
+            end = Math.min(size, pieceEnd(pieceAt(end)));
+        }
+        ByteBuffer target = dst.duplicate();
+        target.limit(target.position() + (int) Math.min(dst.remaining(), end - position));
+        int read = channel().read(target, position);
+        if (read < 0) {
+            throw new IOException("Unexpected end of " + file);
+        }
+        dst.position(dst.position() + read);
+        position += read;
+        return read;
+    }
+
+    private int pieceAt(long filePosition) {
+        return (int) ((fileOffset + filePosition) / pieceLength);
+    }
+
+    /**
+     * @return position in the file right after the piece
+     */
+    private long pieceEnd(int piece) {
+        return (long) (piece + 1) * pieceLength - fileOffset;
+    }
+
+    /**
+     * Move the deadlines to the pieces after the position, the pieces left behind are no longer urgent.
+     */
+    private void updateWindow(int piece) {
+        int start = piece;
+        int end = Math.min(lastPiece + 1, piece + readAhead);
+        if (start == windowStart && end == windowEnd) {
+            return;
+        }
+        for (int p = windowStart; p < windowEnd; p++) {
+            if (p < start || p >= end) {
+                handle.resetPieceDeadline(p);
+            }
+        }
+        for (int p = start; p < end; p++) {
+            if ((p < windowStart || p >= windowEnd) && !isFinished(p)) {
+                handle.setPieceDeadline(p, deadline * (p - start + 1));
+            }
+        }
+        windowStart = start;
+        windowEnd = end;
+    }
+
+    private boolean isFinished(int piece) {
+        synchronized (lock) {
+            return finished.get(piece);
+        }
+    }
+
+    private boolean isReadable(int piece) {
+        synchronized (lock) {
+            return flushed.get(piece);
+        }
+    }
+
+    private void awaitPiece(int piece) throws IOException {
+        long waitUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (lock) {
+            while (!flushed.get(piece)) {
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+                if (removed) {
+                    throw new IOException("Torrent was removed");
+                }
+                if (flushing != null && flusher.isDone(flushTicket)) {
+                    flushed.or(flushing);
+                    flushing = null;
+                    continue;
+                }
+                if (flushing == null && finished.get(piece)) {
+                    flushing = (BitSet) finished.clone();
+                    flushTicket = flusher.request();
+                }
+                long wait = 0;
+                if (timeout > 0) {
+                    wait = TimeUnit.NANOSECONDS.toMillis(waitUntil - System.nanoTime());
+                    if (wait <= 0) {
+                        throw new IOException("Timed out waiting for piece " + piece + " of " + file);
+                    }
+                }
+                try {
+                    lock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for piece " + piece);
+                }
+            }
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            // libtorrent creates the file on the first write
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        synchronized (lock) {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        synchronized (lock) {
+            return open;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean valid;
+        synchronized (lock) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            valid = !removed;
+            // wake up the blocked reader so it releases the stream
+            lock.notifyAll();
+        }
+        try {
+            synchronized (this) {
+                if (valid) {
+                    for (int p = windowStart; p < windowEnd; p++) {
+                        handle.resetPieceDeadline(p);
+                    }
+                }
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        } finally {
+            closeListener.closed(this);
+        }
+    }
+}